@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An AsyncImageFileManager loads and saves images without blocking the
+ * caller: every call returns at once with a future for its result. If a
+ * file cannot be read, decoded, encoded or written, the future fails with
+ * the IOException that says why (as the cause of the exception thrown by
+ * get or join), instead of giving null as ImageFileManager does.
+ *
+ * Reading and writing files is kept apart from decoding and encoding.
+ * The files are read and written whole by a fixed number of I/O threads,
+ * which limits how many files are accessed at once; further requests just
+ * wait in line, so thousands of them can be pending without a thread
+ * each. Decoding and encoding, which is work for the processor rather
+ * than the disk, runs on an executor given by the caller, so it stays
+ * within the threads meant for it.
+ *
+ * @version 1.1
+ */
+public class AsyncImageFileManager implements AutoCloseable
+{
+    /** The number of I/O threads used unless another one is given. */
+    public static final int DEFAULT_IO_THREADS = 16;
+
+    private final ExecutorService io;
+    private final Executor cpu;
+    private final int ioThreads;
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * Create a file manager.
+     * @param ioThreads The most files read or written at once (at least 1).
+     * @param cpu The executor to decode and encode images on.
+     */
+    public AsyncImageFileManager(int ioThreads, Executor cpu)
+    {
+        if(ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1: " + ioThreads);
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.io = Executors.newFixedThreadPool(ioThreads, task -> {
+            Thread thread = new Thread(task, "image-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cpu = cpu;
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Read the content of a file.
+     * @param file The file to read.
+     * @return A future for the bytes of the file; it fails with an
+     *         IOException if the file cannot be read.
+     */
+    public CompletableFuture<byte[]> read(File file)
+    {
+        return run(() -> {
+            byte[] data = Files.readAllBytes(file.toPath());
+            bytesRead.add(data.length);
+            return data;
+        }, io);
+    }
+
+    /**
+     * Write bytes to a file, replacing what it held before. The file is
+     * replaced as a whole, by renaming (see ImageEncoder.writeAtomically).
+     * @param data The bytes to write.
+     * @param file The file to write to.
+     * @return A future that completes when the file is written; it fails
+     *         with an IOException if the file cannot be written.
+     */
+    public CompletableFuture<Void> write(byte[] data, File file)
+    {
+        return run(() -> {
+            ImageEncoder.writeAtomically(data, file);
+            bytesWritten.add(data.length);
+            return null;
+        }, io);
+    }
+
+    /**
+     * Load an image: read its file, then decode it.
+     * @param file The image file.
+     * @return A future for the image; it fails with an IOException if the
+     *         file cannot be read or decoded.
+     */
+    public CompletableFuture<OFImage> load(File file)
+    {
+        return read(file).thenCompose(data -> run(() -> ImageFileManager.decodeImage(data), cpu));
+    }
+
+    /**
+     * Save an image, in the format ImageFileManager.encodeImage gives:
+     * encode it, then write its file. The image must not change until the
+     * future has completed.
+     * @param image The image to save.
+     * @param file The file to save to.
+     * @return A future for how long saving took and how large the file is;
+     *         it fails with an IOException if the image cannot be encoded or
+     *         the file cannot be written.
+     */
+    public CompletableFuture<ImageEncoder.Result> save(OFImage image, File file)
+    {
+        return save(image, file, new ImageEncoder(ImageFileManager.IMAGE_FORMAT));
+    }
+
+    /**
+     * Save an image with an encoder: encode it, then write its file. The
+     * image must not change, and the encoder's settings should not change,
+     * until the future has completed.
+     * @param image The image to save.
+     * @param file The file to save to.
+     * @param encoder The encoder to encode the image with.
+     * @return A future for how long saving took and how large the file is;
+     *         it fails with an IOException if the image cannot be encoded or
+     *         the file cannot be written.
+     */
+    public CompletableFuture<ImageEncoder.Result> save(OFImage image, File file, ImageEncoder encoder)
+    {
+        long[] encodeNanos = new long[1];
+        return run(() -> {
+            long start = System.nanoTime();
+            byte[] data = encoder.encode(image);
+            encodeNanos[0] = System.nanoTime() - start;
+            return data;
+        }, cpu).thenCompose(data -> run(() -> {
+            long start = System.nanoTime();
+            ImageEncoder.writeAtomically(data, file);
+            bytesWritten.add(data.length);
+            return new ImageEncoder.Result(data.length, encodeNanos[0], System.nanoTime() - start);
+        }, io));
+    }
+
+    /**
+     * @return The most files read or written at once.
+     */
+    public int getIoThreads()
+    {
+        return ioThreads;
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Stop the I/O threads once the reads and writes already asked for are
+     * done. Reads and writes asked for afterwards fail with a
+     * RejectedExecutionException.
+     */
+    public void close()
+    {
+        io.shutdown();
+    }
+
+    /**
+     * Run a task on an executor, and return a future for its result that
+     * fails with whatever the task throws, including IOExceptions, or with
+     * a RejectedExecutionException if the executor does not take the task
+     * (such as the I/O threads after close).
+     */
+    private static <T> CompletableFuture<T> run(IOTask<T> task, Executor executor)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                }
+                catch(Throwable exc) {
+                    result.completeExceptionally(exc);
+                }
+            });
+        }
+        catch(RejectedExecutionException exc) {
+            result.completeExceptionally(exc);
+        }
+        return result;
+    }
+
+    /**
+     * A piece of work that may fail with an IOException.
+     */
+    private interface IOTask<T>
+    {
+        T call() throws IOException;
+    }
+}
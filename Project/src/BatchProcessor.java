@@ -0,0 +1,610 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A BatchProcessor applies a filter to every image in a directory and
+ * writes the results to another directory, without a GUI.
+ *
+ * The work is a pipeline of three stages: decoding, filtering and
+ * encoding. Each stage has its own threads, so that one file can be
+ * decoded while another is filtered and a third is encoded. The stages
+ * are connected by bounded queues; a stage that gets ahead of the next one
+ * waits until there is room in the queue between them. So however many
+ * files there are, only a few images are held at any time: those being
+ * worked on and those in the queues.
+ *
+ * The files themselves are read and written by the I/O threads of an
+ * AsyncImageFileManager, so that slow storage does not hold up the
+ * stages. Files are read ahead of the decode stage, as many as its queue
+ * holds (which is at least twice the number of I/O threads), and the
+ * encoded results are written while the next ones are encoded, with at
+ * most twice as many writes pending as there are I/O threads.
+ *
+ * The filter stage runs on a FilterEngine with as many threads as the
+ * stage, so that a large image can still use all of them. The results
+ * borrow their pixels from the PixelPool and give them back once they are
+ * saved.
+ *
+ * For every file a line with its size, the time its decoding, filtering
+ * and encoding took and the size of the result is printed once it is
+ * written, or why it failed. At
+ * the end the number of images per second is printed, and for every stage
+ * how busy its threads were and how full the queue in front of it was, to
+ * tune the number of threads of each stage. The time the decode and encode
+ * stages spend waiting for reads and writes is not counted as busy but
+ * printed apart, since more threads would not help there.
+ *
+ * @version 1.3
+ */
+public class BatchProcessor
+{
+    // The number of images the queue in front of a stage holds per thread
+    // of the stage.
+    private static final int QUEUE_PER_THREAD = 2;
+    // Passed down the pipeline, one per thread, when there are no more files.
+    private static final Job END = new Job(null);
+
+    private final Filter filter;
+    private final int decodeThreads;
+    private final int filterThreads;
+    private final int encodeThreads;
+    private final int ioThreads;
+    private final PrintStream out;
+
+    /**
+     * Create a batch processor.
+     * @param filter The filter to apply to every image.
+     * @param decodeThreads The number of files decoded at once (at least 1).
+     * @param filterThreads The number of images filtered at once (at least 1).
+     * @param encodeThreads The number of files encoded at once (at least 1).
+     * @param ioThreads The number of files read or written at once (at least 1).
+     * @param out Where to print the report.
+     */
+    public BatchProcessor(Filter filter, int decodeThreads, int filterThreads, int encodeThreads, int ioThreads,
+                          PrintStream out)
+    {
+        if(decodeThreads < 1 || filterThreads < 1 || encodeThreads < 1 || ioThreads < 1) {
+            throw new IllegalArgumentException("every stage needs at least 1 thread: " + decodeThreads + ":"
+                                               + filterThreads + ":" + encodeThreads + ":" + ioThreads);
+        }
+        this.filter = filter;
+        this.decodeThreads = decodeThreads;
+        this.filterThreads = filterThreads;
+        this.encodeThreads = encodeThreads;
+        this.ioThreads = ioThreads;
+        this.out = out;
+    }
+
+    /**
+     * Build a filter from a list of filter names separated by commas, such
+     * as "Grayscale,Smooth,Edge Detection". Names are those of
+     * Filter.createAll; case and spaces do not matter, and a name can be
+     * shortened as long as only one filter starts with it.
+     * @param names The names of the filters, in the order they are applied.
+     * @return The filter, or a chain of the filters if there are several.
+     * @throws IllegalArgumentException if a name matches no filter or more
+     *         than one.
+     */
+    public static Filter parseFilters(String names)
+    {
+        List<Filter> known = Filter.createAll();
+        List<Filter> chosen = new ArrayList<>();
+        for(String name : names.split(",")) {
+            chosen.add(filterNamed(name, known));
+        }
+        return chosen.size() == 1 ? chosen.get(0) : new FilterChain(names, chosen);
+    }
+
+    /**
+     * Filter all image files in a directory (but not in its subdirectories)
+     * and save the results, as JPG files of the same names, in another
+     * directory, which is created if needed. If the results of several
+     * files would get the same name, such as those of a.png and a.jpg, only
+     * the first of them by name is filtered; the others count as failed.
+     * @param inputDir The directory to read the images from.
+     * @param outputDir The directory to write the results to.
+     * @return The number of files that could not be read, filtered or saved.
+     * @throws IllegalArgumentException if inputDir is not a directory,
+     *         outputDir cannot be created, or both are the same directory.
+     * @throws InterruptedException if the thread is interrupted while it
+     *         waits for the files to be done.
+     * @throws IOException if the names of the directories cannot be resolved.
+     */
+    public int run(File inputDir, File outputDir) throws InterruptedException, IOException
+    {
+        if(inputDir.getCanonicalFile().equals(outputDir.getCanonicalFile())) {
+            throw new IllegalArgumentException("the output directory must not be the input directory: " + inputDir);
+        }
+        File[] files = inputDir.listFiles(file -> file.isFile() && isImageFile(file));
+        if(files == null) {
+            throw new IllegalArgumentException("not a directory: " + inputDir);
+        }
+        if(!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create directory: " + outputDir);
+        }
+        Arrays.sort(files);
+        List<File> chosen = new ArrayList<>();
+        Map<String, File> byOutput = new HashMap<>();
+        int failed = 0;
+        for(File file : files) {
+            // compared without case, since file systems may not tell "A.jpg" from "a.jpg"
+            File first = byOutput.putIfAbsent(outputName(file).toLowerCase(Locale.ROOT), file);
+            if(first != null) {
+                report(file, "skipped: its result would replace that of " + first.getName());
+                failed++;
+            }
+            else {
+                chosen.add(file);
+            }
+        }
+
+        FilterEngine engine = new FilterEngine(new ForkJoinPool(filterThreads));
+        AsyncImageFileManager io = new AsyncImageFileManager(ioThreads, engine.getPool());
+        Writer writer = new Writer(io, outputDir);
+        Stage encoding = new Stage("encode", encodeThreads, QUEUE_PER_THREAD * encodeThreads, null, "writes",
+                                   job -> encode(job, writer));
+        Stage filtering = new Stage("filter", filterThreads, QUEUE_PER_THREAD * filterThreads, encoding, null,
+                                    job -> filter(job, engine));
+        Stage decoding = new Stage("decode", decodeThreads,
+                                   Math.max(QUEUE_PER_THREAD * decodeThreads, QUEUE_PER_THREAD * ioThreads),
+                                   filtering, "reads", this::decode);
+        List<Stage> stages = List.of(decoding, filtering, encoding);
+
+        long start = System.nanoTime();
+        for(Stage stage : stages) {
+            stage.start();
+        }
+        for(File file : chosen) {
+            Job job = new Job(file);
+            job.data = io.read(file); // read ahead while the job waits for the decode stage
+            decoding.queue.put(job);
+        }
+        decoding.queue.end(decodeThreads);
+        for(Stage stage : stages) {
+            stage.join();
+            failed += stage.getFailed();
+        }
+        failed += writer.finish();
+        long nanos = System.nanoTime() - start;
+        engine.getPool().shutdown();
+        io.close();
+
+        int done = files.length - failed;
+        out.println(String.format(Locale.ROOT, "%d images in %.1f s (%.1f images/s), %d failed",
+                                  done, nanos / 1e9, done / (nanos / 1e9), failed));
+        for(Stage stage : stages) {
+            out.println(stage.describe(nanos));
+        }
+        out.println(String.format(Locale.ROOT, "io: %d threads, %.1f MB read, %.1f MB written", ioThreads,
+                                  io.getBytesRead() / 1e6, io.getBytesWritten() / 1e6));
+        out.println("Pixel pool: " + PixelPool.getShared());
+        return failed;
+    }
+
+    /**
+     * Decode the image of a job, once its file has been read.
+     * @return true if it could be read and decoded.
+     */
+    private boolean decode(Job job)
+    {
+        byte[] data;
+        long waitStart = System.nanoTime();
+        try {
+            data = job.data.join();
+        }
+        catch(CompletionException exc) {
+            report(job.file, "could not be read: " + exc.getCause());
+            return false;
+        }
+        finally {
+            job.ioWaitNanos = System.nanoTime() - waitStart;
+        }
+        job.data = null;
+        long start = System.nanoTime();
+        try {
+            job.image = ImageFileManager.decodeImage(data);
+        }
+        catch(IOException exc) {
+            report(job.file, "could not be decoded: " + exc);
+            return false;
+        }
+        job.decodeNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    /**
+     * Filter the image of a job into its result.
+     * @return true (a filter cannot fail).
+     */
+    private boolean filter(Job job, FilterEngine engine)
+    {
+        long start = System.nanoTime();
+        job.result = engine.filtered(filter, job.image, new Progress());
+        job.image = null; // only the result is needed from now on
+        job.filterNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    /**
+     * Encode the result of a job, and hand it to the writer.
+     * @return true if it could be encoded.
+     */
+    private boolean encode(Job job, Writer writer) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        byte[] data;
+        try {
+            data = ImageFileManager.encodeImage(job.result);
+        }
+        catch(IOException exc) {
+            report(job.file, "could not be encoded: " + exc);
+            return false;
+        }
+        finally {
+            job.width = job.result.getWidth();
+            job.height = job.result.getHeight();
+            job.result.release();
+            job.result = null;
+        }
+        job.encodeNanos = System.nanoTime() - start;
+        writer.write(job, data);
+        return true;
+    }
+
+    /**
+     * Print a line about a file.
+     */
+    private void report(File file, String text)
+    {
+        out.println(file.getName() + "  " + text);
+    }
+
+    /**
+     * Return the name of the file a result is saved to: the name of the
+     * original with the extension of the format that is written.
+     */
+    private static String outputName(File file)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "." + ImageFileManager.IMAGE_FORMAT;
+    }
+
+    /**
+     * Return true if a file has the extension of a format ImageIO can read.
+     */
+    private static boolean isImageFile(File file)
+    {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for(String suffix : ImageIO.getReaderFileSuffixes()) {
+            if(name.endsWith("." + suffix.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the filter with the given name, or the only filter whose name
+     * starts with it, ignoring case and spaces.
+     */
+    private static Filter filterNamed(String name, List<Filter> filters)
+    {
+        String wanted = simplified(name);
+        List<Filter> matches = new ArrayList<>();
+        for(Filter filter : filters) {
+            String candidate = simplified(filter.getName());
+            if(candidate.equals(wanted)) {
+                return filter;
+            }
+            if(!wanted.isEmpty() && candidate.startsWith(wanted)) {
+                matches.add(filter);
+            }
+        }
+        if(matches.size() != 1) {
+            List<String> names = new ArrayList<>();
+            for(Filter filter : filters) {
+                names.add(filter.getName());
+            }
+            throw new IllegalArgumentException((matches.isEmpty() ? "unknown filter: " : "ambiguous filter: ")
+                                               + name.trim() + " (known filters: " + String.join(", ", names) + ")");
+        }
+        return matches.get(0);
+    }
+
+    /**
+     * Return a name in lower case without spaces.
+     */
+    private static String simplified(String name)
+    {
+        return name.replace(" ", "").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * One file on its way through the pipeline.
+     */
+    private static class Job
+    {
+        final File file;
+        CompletableFuture<byte[]> data;  // the content of the file, until it is decoded
+        OFImage image;       // the decoded image, until it is filtered
+        OFImage result;      // the filtered image, until it is encoded
+        int width;
+        int height;
+        long decodeNanos;
+        long filterNanos;
+        long encodeNanos;
+        long ioWaitNanos;    // how long the current step waited for a read or a write
+
+        Job(File file)
+        {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Writes the encoded results through an AsyncImageFileManager, with a
+     * limited number of writes pending, and reports each file when it is
+     * written.
+     */
+    private class Writer
+    {
+        private final AsyncImageFileManager io;
+        private final File outputDir;
+        private final int capacity;
+        private final Semaphore room;
+        private final AtomicInteger failed = new AtomicInteger();
+
+        Writer(AsyncImageFileManager io, File outputDir)
+        {
+            this.io = io;
+            this.outputDir = outputDir;
+            capacity = QUEUE_PER_THREAD * io.getIoThreads();
+            room = new Semaphore(capacity);
+        }
+
+        /**
+         * Start writing a file, once fewer than the most writes allowed are
+         * pending.
+         */
+        void write(Job job, byte[] data) throws InterruptedException
+        {
+            if(!room.tryAcquire()) {
+                long start = System.nanoTime();
+                room.acquire();
+                job.ioWaitNanos = System.nanoTime() - start;
+            }
+            io.write(data, new File(outputDir, outputName(job.file))).whenComplete((done, exc) -> {
+                if(exc != null) {
+                    failed.incrementAndGet();
+                    report(job.file, "could not be written: " + exc);
+                }
+                else {
+                    report(job.file, String.format(Locale.ROOT, "%dx%d  decode %d ms  filter %d ms  encode %d ms  %d KB",
+                                                   job.width, job.height, job.decodeNanos / 1000000,
+                                                   job.filterNanos / 1000000, job.encodeNanos / 1000000,
+                                                   (data.length + 1023) / 1024));
+                }
+                room.release();
+            });
+        }
+
+        /**
+         * Wait until all writes are done.
+         * @return The number of files that could not be written.
+         */
+        int finish() throws InterruptedException
+        {
+            room.acquire(capacity);
+            return failed.get();
+        }
+    }
+
+    /**
+     * What a stage does with a job.
+     */
+    private interface Step
+    {
+        /**
+         * @return true if the job can go on to the next stage, false if it
+         *         failed (and has been reported).
+         */
+        boolean run(Job job) throws InterruptedException;
+    }
+
+    /**
+     * A stage of the pipeline: a number of threads that take jobs from the
+     * stage's queue, do the stage's step and put them into the queue of
+     * the next stage.
+     */
+    private class Stage
+    {
+        final StageQueue queue;
+        private final String name;
+        private final Stage next;
+        private final Step step;
+        private final Thread[] threads;
+        private final AtomicInteger running;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final LongAdder busyNanos = new LongAdder();
+        // what the step waits for, such as "reads", or null, and how long it waited
+        private final String waitsFor;
+        private final LongAdder ioWaitNanos = new LongAdder();
+
+        Stage(String name, int threadCount, int capacity, Stage next, String waitsFor, Step step)
+        {
+            this.name = name;
+            this.waitsFor = waitsFor;
+            this.next = next;
+            this.step = step;
+            queue = new StageQueue(capacity);
+            threads = new Thread[threadCount];
+            for(int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(this::work, "batch-" + name + "-" + (i + 1));
+            }
+            running = new AtomicInteger(threadCount);
+        }
+
+        void start()
+        {
+            for(Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        void join() throws InterruptedException
+        {
+            for(Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        int getFailed()
+        {
+            return failed.get();
+        }
+
+        /**
+         * Return a line on how busy the threads of this stage were, how long
+         * they waited for reads or writes (which is not counted as busy),
+         * and how full its queue was.
+         */
+        String describe(long nanos)
+        {
+            String waiting = waitsFor == null ? ""
+                : String.format(Locale.ROOT, ", %.0f%% waiting for %s",
+                                100.0 * ioWaitNanos.sum() / nanos / threads.length, waitsFor);
+            return String.format(Locale.ROOT, "%s: %d threads, %.0f%% busy%s; queue in front: %s",
+                                 name, threads.length, 100.0 * busyNanos.sum() / nanos / threads.length,
+                                 waiting, queue.describe());
+        }
+
+        /**
+         * The loop of a thread of this stage. The last thread to finish
+         * tells the next stage that no more jobs come.
+         */
+        private void work()
+        {
+            try {
+                for(Job job = queue.take(); job != END; job = queue.take()) {
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        ok = step.run(job);
+                    }
+                    catch(RuntimeException | OutOfMemoryError exc) {
+                        report(job.file, name + " failed: " + exc);
+                        ok = false;
+                    }
+                    busyNanos.add(System.nanoTime() - start - job.ioWaitNanos);
+                    ioWaitNanos.add(job.ioWaitNanos);
+                    job.ioWaitNanos = 0;
+                    if(!ok) {
+                        failed.incrementAndGet();
+                    }
+                    else if(next != null) {
+                        next.queue.put(job);
+                    }
+                }
+            }
+            catch(InterruptedException exc) {
+                // stop early; the stages after this one still finish what they have
+            }
+            finally {
+                if(running.decrementAndGet() == 0 && next != null) {
+                    next.queue.end(next.threads.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * The queue in front of a stage. It holds a limited number of jobs:
+     * a thread that puts a job into a full queue waits until there is room.
+     * The END markers do not count against the limit.
+     */
+    private static class StageQueue
+    {
+        private final BlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+        private final int capacity;
+        private final Semaphore room;
+        private final LongAdder puts = new LongAdder();
+        private final LongAdder depthSum = new LongAdder();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final LongAdder waitNanos = new LongAdder();
+
+        StageQueue(int capacity)
+        {
+            this.capacity = capacity;
+            room = new Semaphore(capacity);
+        }
+
+        /**
+         * Add a job, waiting until there is room for it.
+         */
+        void put(Job job) throws InterruptedException
+        {
+            if(!room.tryAcquire()) {
+                long start = System.nanoTime();
+                room.acquire();
+                waitNanos.add(System.nanoTime() - start);
+            }
+            jobs.add(job);
+            int depth = jobs.size();
+            puts.increment();
+            depthSum.add(depth);
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        /**
+         * Take the next job, waiting until there is one.
+         */
+        Job take() throws InterruptedException
+        {
+            Job job = jobs.take();
+            if(job != END) {
+                room.release();
+            }
+            return job;
+        }
+
+        /**
+         * Tell the given number of threads that no more jobs come.
+         */
+        void end(int threads)
+        {
+            for(int i = 0; i < threads; i++) {
+                jobs.add(END);
+            }
+        }
+
+        /**
+         * Return how full this queue was when jobs were put into it, and for
+         * how long the threads putting them had to wait for room in total.
+         */
+        String describe()
+        {
+            long count = puts.sum();
+            return String.format(Locale.ROOT, "%.1f jobs on average, %d at most of %d, full for %.1f s",
+                                 count > 0 ? (double) depthSum.sum() / count : 0, maxDepth.get(), capacity,
+                                 waitNanos.sum() / 1e9);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 
-public class BlueFilter extends Filter{
+public class BlueFilter extends PointFilter{
 	
 	public BlueFilter(String name) {
 		super(name);
@@ -7,14 +7,20 @@ public class BlueFilter extends Filter{
 	
 	
 	
-	public void apply(OFImage image) {
-		
-		   int height = image.getHeight();
-	        int width = image.getWidth();
-	        for(int y = 0; y < height; y++) {
-	            for(int x = 0; x < width; x++) {
-	            	image.setRGB(x, y, image.getPixel(x, y).getBlue());
-	            }
-	        }
+	protected LookupTable createTable() {
+		// keep only the blue component
+		return LookupTable.forChannels(value -> 0, value -> 0, value -> value);
+	}
+	
+	protected void filterRows(ImageBand band) {
+		// masking is even cheaper than looking the result up in the table
+		int[] source = band.getSource();
+		int[] target = band.getTarget();
+		int s = band.getSourceIndex(0, band.getFromY());
+		int t = band.getTargetIndex(0, band.getFromY());
+		int end = band.getTargetIndex(0, band.getToY());
+		for(; t < end; s++, t++) {
+			target[t] = source[s] & 0xff;
+		}
 	}
 }
\ No newline at end of file
@@ -4,8 +4,11 @@
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class DarkerFilter extends Filter
+public class DarkerFilter extends PointFilter
 {
+    // the same scale factor that Color.darker() uses
+    private static final double FACTOR = 0.7;
+
     /**
      * Constructor for objects of class DarkerFilter.
      * @param name The name of the filter.
@@ -16,18 +19,12 @@ public class DarkerFilter extends Filter
     }
 
     /**
-     * Apply this filter to an image.
+     * Darken each color component the same way Color.darker() does.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  The lookup table of this filter.
      */
-    public void apply(OFImage image)
+    protected LookupTable createTable()
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                image.setPixel(x, y, image.getPixel(x, y).darker());
-            }
-        }
+        return LookupTable.forChannels(value -> (int) (value * FACTOR));
     }
 }
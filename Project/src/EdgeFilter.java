@@ -1,22 +1,29 @@
-import java.awt.Color;
-
-import java.util.List;
-import java.util.ArrayList;
-
 /**
- * An image filter to detect edges and highlight them, a bit like 
+ * An image filter to detect edges and highlight them, a bit like
  * a colored pencil drawing.
- * 
+ *
+ * For every color component, the filter finds the largest and smallest
+ * value in a square window around each pixel (only pixels inside the image
+ * count). The bigger the difference, the darker the result. The minimum and
+ * maximum are computed with the van Herk/Gil-Werman algorithm, first along
+ * the rows and then down the columns, so the cost per pixel does not depend
+ * on the window size.
+ *
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 2.2
  */
 public class EdgeFilter extends Filter
 {
-    private static final int TOLERANCE = 20;
-    
-    private OFImage original;
-    private int width;
-    private int height;
+    /** The window size used unless another one is given. */
+    public static final int DEFAULT_WINDOW_SIZE = 3;
+    /** The tolerance used unless another one is given. */
+    public static final int DEFAULT_TOLERANCE = 20;
+
+    // the free bit above each component of a spread color
+    private static final int LANE_BITS = (1 << 8) | (1 << 17) | (1 << 26);
+
+    private final int windowSize;
+    private final int tolerance;
 
     /**
      * Constructor for objects of class EdgeFilter.
@@ -24,120 +31,331 @@ public class EdgeFilter extends Filter
      */
     public EdgeFilter(String name)
     {
-        super(name);
+        this(name, DEFAULT_WINDOW_SIZE, DEFAULT_TOLERANCE);
     }
 
     /**
-     * Apply this filter to an image.
-     * 
-     * @param  image  The image to be changed by this filter.
+     * Constructor for objects of class EdgeFilter with a given window size
+     * and tolerance.
+     * @param name The name of the filter.
+     * @param windowSize The width and height of the window that is searched
+     *                   for the smallest and largest values (at least 1).
+     * @param tolerance How much a component may vary within the window
+     *                  before it counts as an edge (0 to 255).
      */
-    public void apply(OFImage image)
+    public EdgeFilter(String name, int windowSize, int tolerance)
     {
-        original = new OFImage(image);
-        width = original.getWidth();
-        height = original.getHeight();
-        
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                image.setPixel(x, y, edge(x, y));
-            }
+        super(name);
+        if(windowSize < 1) {
+            throw new IllegalArgumentException("window size must be at least 1: " + windowSize);
+        }
+        if(tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("tolerance must be between 0 and 255: " + tolerance);
         }
+        this.windowSize = windowSize;
+        this.tolerance = tolerance;
     }
 
     /**
-     * Return a new color that is the smoothed color of a given
-     * position. The "smoothed color" is the color value that is the
-     * average of this pixel and all the adjacent pixels.
-     * @param xpos The x position of the pixel.
-     * @param ypos The y position of the pixel.
-     * @return The smoothed color.
+     * Return the window size of this filter.
+     *
+     * @return  The width and height of the window around each pixel.
      */
-    private Color edge(int xpos, int ypos)
+    public int getWindowSize()
     {
-        List<Color> pixels = new ArrayList<>(9);
-        
-        for(int y = ypos-1; y <= ypos+1; y++) {
-            for(int x = xpos-1; x <= xpos+1; x++) {
-                if( x >= 0 && x < width && y >= 0 && y < height ) {
-                    pixels.add(original.getPixel(x, y));
-                }
-            }
+        return windowSize;
+    }
+
+    /**
+     * Return the tolerance of this filter.
+     *
+     * @return  How much a component may vary before it counts as an edge.
+     */
+    public int getTolerance()
+    {
+        return tolerance;
+    }
+
+    /**
+     * Return the kind of this filter.
+     *
+     * @return  Kind.NEIGHBORHOOD, since each pixel is compared with its neighbours.
+     */
+    public Kind getKind()
+    {
+        return Kind.NEIGHBORHOOD;
+    }
+
+    /**
+     * Return how many rows above and below a pixel are compared.
+     *
+     * @return  The reach of this filter, in rows.
+     */
+    public int getReach()
+    {
+        return windowSize / 2;
+    }
+
+    /**
+     * Return true if the window is centred on each pixel, which it is for
+     * odd window sizes. An even window reaches one pixel further to the
+     * right and down than to the left and up, so turning the image changes
+     * the result.
+     *
+     * @return  true if the window size is odd.
+     */
+    public boolean isOrientationInvariant()
+    {
+        return windowSize % 2 == 1;
+    }
+
+    /**
+     * Return a filter with the window size scaled by a factor. The window
+     * is never made smaller than the default size (unless it already is),
+     * since smaller windows find hardly any edges at all.
+     *
+     * @param  factor  The scale of the copy the filter is meant for.
+     * @return  A filter for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        int scaled = Math.max((int) Math.round(windowSize * factor),
+                              Math.min(windowSize, DEFAULT_WINDOW_SIZE));
+        return scaled == windowSize ? this : new EdgeFilter(getName(), scaled, tolerance);
+    }
+
+    /**
+     * Detect the edges in the rows of a band.
+     *
+     * @param  band  The band to be computed.
+     */
+    protected void filterRows(ImageBand band)
+    {
+        int width = band.getWidth();
+        int rows = band.getToY() - band.getFromY();
+        int paddedRows = rows + windowSize - 1;
+
+        // along the rows, with single pixels as elements
+        int[] line = new int[width + windowSize - 1];
+        int[] suffixMax = new int[paddedRows * Math.max(width, line.length)];
+        int[] suffixMin = new int[suffixMax.length];
+        int[] rowMax = new int[paddedRows * width];
+        int[] rowMin = new int[paddedRows * width];
+        for(int p = 0; p < paddedRows; p++) {
+            fillLine(band, p, line);
+            slideRow(line, suffixMax, suffixMin, rowMax, rowMin, p * width);
         }
 
-        return new Color(255 - diffRed(pixels), 255 - diffGreen(pixels), 255 - diffBlue(pixels));
+        // down the columns, with whole rows as elements
+        int[] high = new int[rows * width];
+        int[] low = new int[rows * width];
+        slideColumns(rowMax, rowMin, paddedRows, width, suffixMax, suffixMin,
+                     new int[width], new int[width], high, low);
+
+        int[] target = band.getTarget();
+        int t = band.getTargetIndex(0, band.getFromY());
+        for(int i = 0; i < high.length; i++) {
+            int max = high[i];
+            int min = low[i];
+            target[t + i] = ((255 - diff(max >> 18, min >> 18)) << 16)
+                            | ((255 - diff((max >> 9) & 0xff, (min >> 9) & 0xff)) << 8)
+                            | (255 - diff(max & 0xff, min & 0xff));
+        }
     }
 
     /**
-     * @param pixels The list of pixels to be averaged.
-     * @return The average of all the red values in the given list of pixels.
+     * Copy one row, with the columns the windows need on either side, into
+     * an array of spread pixels (see spread). Places outside the image get
+     * the value of the nearest pixel inside it; as every window contains
+     * that pixel anyway, this does not change any minimum or maximum.
+     * @param band The band holding the original pixels.
+     * @param p The row, counted from the first row the band's windows reach.
+     * @param line The array receiving the spread pixels.
      */
-    private int diffRed(List<Color> pixels)
+    private void fillLine(ImageBand band, int p, int[] line)
     {
-        int max = 0;
-        int min = 255;
-        for(Color color : pixels) {
-            int val = color.getRed();
-            if(val > max) {
-                max = val;
-            }
-            if(val < min) {
-                min = val;
-            }
+        int[] source = band.getSource();
+        int width = band.getWidth();
+        int before = (windowSize - 1) / 2;
+        int y = Math.min(Math.max(band.getFromY() - before + p, 0), band.getHeight() - 1);
+        int s = band.getSourceIndex(0, y);
+        int first = spread(source[s]);
+        int last = spread(source[s + width - 1]);
+        for(int i = 0; i < before; i++) {
+            line[i] = first;
         }
-        int difference = max - min - TOLERANCE;
-        if(difference < 0) {
-            difference = 0;
+        for(int x = 0; x < width; x++) {
+            line[before + x] = spread(source[s + x]);
+        }
+        for(int i = before + width; i < line.length; i++) {
+            line[i] = last;
         }
-        return difference;
     }
 
     /**
-     * @param pixels The list of pixels to be averaged.
-     * @return The average of all the green values in the given list of pixels.
+     * Compute the maxima and minima over every window of windowSize
+     * consecutive pixels of a row, with the van Herk/Gil-Werman algorithm:
+     * the row is cut into blocks of windowSize pixels, and each window is
+     * covered by the end of one block (a suffix) and the start of the next
+     * (a prefix).
+     * @param line The spread pixels of the row, padded on both sides.
+     * @param suffixMax Scratch space for the block suffixes.
+     * @param suffixMin Scratch space for the block suffixes.
+     * @param resultMax The array receiving the maxima.
+     * @param resultMin The array receiving the minima.
+     * @param start The index at which to store the results.
      */
-    private int diffGreen(List<Color> pixels)
+    private void slideRow(int[] line, int[] suffixMax, int[] suffixMin,
+                          int[] resultMax, int[] resultMin, int start)
     {
-        int max = 0;
-        int min = 255;
-        for(Color color : pixels) {
-            int val = color.getGreen();
-            if(val > max) {
-                max = val;
-            }
-            if(val < min) {
-                min = val;
+        int n = line.length;
+        for(int blockStart = 0; blockStart < n; blockStart += windowSize) {
+            int i = Math.min(blockStart + windowSize, n) - 1;
+            int high = line[i];
+            int low = high;
+            suffixMax[i] = high;
+            suffixMin[i] = low;
+            for(i--; i >= blockStart; i--) {
+                high = maxRGB(high, line[i]);
+                low = minRGB(low, line[i]);
+                suffixMax[i] = high;
+                suffixMin[i] = low;
             }
         }
-        int difference = max - min - TOLERANCE;
-        if(difference < 0) {
-            difference = 0;
+
+        // the window ending at pixel i starts at i - last
+        int last = windowSize - 1;
+        for(int blockStart = 0; blockStart < n; blockStart += windowSize) {
+            int end = Math.min(blockStart + windowSize, n);
+            int high = line[blockStart];
+            int low = high;
+            for(int i = blockStart; i < end; i++) {
+                high = maxRGB(high, line[i]);
+                low = minRGB(low, line[i]);
+                if(i >= last) {
+                    resultMax[start + i - last] = maxRGB(suffixMax[i - last], high);
+                    resultMin[start + i - last] = minRGB(suffixMin[i - last], low);
+                }
+            }
         }
-        return difference;
     }
 
     /**
-     * @param pixels The list of pixels to be averaged.
-     * @return The average of all the blue values in the given list of pixels.
+     * Compute the maxima and minima over every window of windowSize
+     * consecutive rows, in the same way as slideRow but with whole rows as
+     * the elements, so that memory is walked row by row.
+     * @param max The rows the maxima are taken of.
+     * @param min The rows the minima are taken of.
+     * @param rows The number of rows.
+     * @param width The number of pixels in a row.
+     * @param suffixMax Scratch space for the block suffixes.
+     * @param suffixMin Scratch space for the block suffixes.
+     * @param prefixMax Scratch space for the running block prefix (one row).
+     * @param prefixMin Scratch space for the running block prefix (one row).
+     * @param resultMax The array receiving the maxima.
+     * @param resultMin The array receiving the minima.
      */
-    private int diffBlue(List<Color> pixels)
+    private void slideColumns(int[] max, int[] min, int rows, int width,
+                              int[] suffixMax, int[] suffixMin, int[] prefixMax, int[] prefixMin,
+                              int[] resultMax, int[] resultMin)
     {
-        int max = 0;
-        int min = 255;
-        for(Color color : pixels) {
-            int val = color.getBlue();
-            if(val > max) {
-                max = val;
+        for(int blockStart = 0; blockStart < rows; blockStart += windowSize) {
+            int end = Math.min(blockStart + windowSize, rows) - 1;
+            System.arraycopy(max, end * width, suffixMax, end * width, width);
+            System.arraycopy(min, end * width, suffixMin, end * width, width);
+            for(int p = end - 1; p >= blockStart; p--) {
+                int row = p * width;
+                for(int x = 0; x < width; x++) {
+                    suffixMax[row + x] = maxRGB(suffixMax[row + width + x], max[row + x]);
+                    suffixMin[row + x] = minRGB(suffixMin[row + width + x], min[row + x]);
+                }
             }
-            if(val < min) {
-                min = val;
+        }
+
+        // the window ending at row p starts at row p - last
+        int last = windowSize - 1;
+        for(int blockStart = 0; blockStart < rows; blockStart += windowSize) {
+            int end = Math.min(blockStart + windowSize, rows);
+            System.arraycopy(max, blockStart * width, prefixMax, 0, width);
+            System.arraycopy(min, blockStart * width, prefixMin, 0, width);
+            for(int p = blockStart; p < end; p++) {
+                int row = p * width;
+                if(p > blockStart) {
+                    for(int x = 0; x < width; x++) {
+                        prefixMax[x] = maxRGB(prefixMax[x], max[row + x]);
+                        prefixMin[x] = minRGB(prefixMin[x], min[row + x]);
+                    }
+                }
+                if(p >= last) {
+                    int r = (p - last) * width;
+                    for(int x = 0; x < width; x++) {
+                        resultMax[r + x] = maxRGB(suffixMax[r + x], prefixMax[x]);
+                        resultMin[r + x] = minRGB(suffixMin[r + x], prefixMin[x]);
+                    }
+                }
             }
         }
-        int difference = max - min - TOLERANCE;
+    }
+
+    /**
+     * Spread the components of a packed 0xRRGGBB color into nine-bit lanes
+     * (red in bits 18-25, green in 9-16, blue in 0-7). The free bit above
+     * each component lets maxRGB and minRGB compare all three at once.
+     * @param rgb The packed color.
+     * @return The spread color.
+     */
+    private static int spread(int rgb)
+    {
+        return (rgb & 0xff) | ((rgb & 0xff00) << 1) | ((rgb & 0xff0000) << 2);
+    }
+
+    /**
+     * Return, for each lane of two spread colors, a mask of all ones where
+     * the lane of a is at least the lane of b, and zero otherwise.
+     * @param a The first spread color.
+     * @param b The second spread color.
+     * @return The lane mask.
+     */
+    private static int atLeast(int a, int b)
+    {
+        // a + 256 - b keeps the free bit of a lane set exactly when a >= b
+        int set = ((a | LANE_BITS) - b) & LANE_BITS;
+        return set - (set >>> 8);
+    }
+
+    /**
+     * @param a The first spread color.
+     * @param b The second spread color.
+     * @return The component-wise maximum of two spread colors.
+     */
+    private static int maxRGB(int a, int b)
+    {
+        int mask = atLeast(a, b);
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * @param a The first spread color.
+     * @param b The second spread color.
+     * @return The component-wise minimum of two spread colors.
+     */
+    private static int minRGB(int a, int b)
+    {
+        int mask = atLeast(a, b);
+        return (b & mask) | (a & ~mask);
+    }
+
+    /**
+     * @param max The largest value of a color component in the neighbourhood.
+     * @param min The smallest value of a color component in the neighbourhood.
+     * @return The difference, reduced by the tolerance, but never below zero.
+     */
+    private int diff(int max, int min)
+    {
+        int difference = max - min - tolerance;
         if(difference < 0) {
             difference = 0;
         }
         return difference;
     }
-
 }
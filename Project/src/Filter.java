@@ -1,15 +1,61 @@
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Filter is an abstract superclass for all image filters in this
  * application. Filters can be applied to OFImages by invoking the apply 
  * method.
  * 
+ * Subclasses do their work in filterRows, which computes a horizontal band
+ * of the result. This lets the FilterEngine split an image into bands and
+ * filter them in parallel; apply simply filters the whole image as a single
+ * band.
+ * 
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 1.4
  */
 public abstract class Filter
 {
+    /**
+     * The kinds of filters. The kind tells the FilterEngine what a filter
+     * reads when it computes a pixel, and so how it can be scheduled.
+     */
+    public enum Kind
+    {
+        /** Each pixel depends on the same pixel of the original only. */
+        POINT,
+        /** Each pixel depends on the original pixels close around it. */
+        NEIGHBORHOOD,
+        /** Each pixel is taken from some other place in the original. */
+        GEOMETRIC
+    }
+
     private String name;
 
+    /**
+     * Create a list with one of each of the known filters, with their
+     * default settings, in the order in which they are offered.
+     * 
+     * @return  The list of filters; it can be changed.
+     */
+    public static List<Filter> createAll()
+    {
+        List<Filter> filterList = new ArrayList<>();
+        filterList.add(new DarkerFilter("Darker"));
+        filterList.add(new LighterFilter("Lighter"));
+        filterList.add(new ThresholdFilter("Threshold"));
+        filterList.add(new InvertFilter("Invert"));
+        filterList.add(new SolarizeFilter("Solarize"));
+        filterList.add(new SmoothFilter("Smooth"));
+        filterList.add(new PixelizeFilter("Pixelize"));
+        filterList.add(new MirrorFilter("Mirror"));
+        filterList.add(new GrayScaleFilter("Grayscale"));
+        filterList.add(new EdgeFilter("Edge Detection"));
+        filterList.add(new FishEyeFilter("Fish Eye"));
+        filterList.add(new BlueFilter("Blue Extract"));
+        return filterList;
+    }
+
     /**
      * Create a new filter with a given name.
      * @param name The name of the filter.
@@ -29,10 +75,87 @@ public abstract class Filter
         return name;
     }
     
+    /**
+     * Return the kind of this filter.
+     * 
+     * @return  The kind of this filter.
+     */
+    public abstract Kind getKind();
+    
+    /**
+     * Return how many rows above and below an output row this filter may
+     * read from the original image. Point filters have a reach of 0.
+     * 
+     * @return  The vertical reach of this filter, in rows.
+     */
+    public int getReach()
+    {
+        return 0;
+    }
+
+    /**
+     * Return a filter that does to a copy of an image scaled by a given
+     * factor what this filter does to the image itself, as closely as
+     * possible. This is used to preview a filter on a smaller copy of a
+     * large image. Filters whose effect is measured in pixels (a radius,
+     * a block size, a displacement) scale it; all others return themselves.
+     * 
+     * @param  factor  The scale of the copy (below 1 for a smaller copy).
+     * @return  A filter for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        return this;
+    }
+    
+    /**
+     * Return true if filtering an image that was turned or flipped gives the
+     * same result as turning or flipping the filtered image. Such filters
+     * can be applied to the pixels of an image as they are stored, whatever
+     * orientation the image is shown in. Point filters and the square
+     * windows of neighbourhood filters do not care about the orientation;
+     * geometric filters do.
+     * 
+     * @return  true if this filter does not depend on the orientation.
+     */
+    public boolean isOrientationInvariant()
+    {
+        return getKind() != Kind.GEOMETRIC;
+    }
+
+    /**
+     * Return the orientation this filter amounts to, if all it does is turn
+     * or flip the image. Such a filter can be applied by just changing the
+     * orientation the image is shown in.
+     * 
+     * @return  The orientation, or null if this filter does more than that.
+     */
+    public Orientation getOrientation()
+    {
+        return null;
+    }
+    
     /**
      * Apply this filter to an image.
      * 
      * @param  image  The image to be changed by this filter.
      */
-    public abstract void apply(OFImage image);
+    public void apply(OFImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] target = image.getPixels();
+        int[] source = getKind() == Kind.POINT ? target : target.clone();
+        filterRows(new ImageBand(source, 0, target, 0, width, height, 0, height));
+    }
+    
+    /**
+     * Compute the rows of a band. Only the band's target rows from
+     * getFromY() (inclusive) to getToY() (exclusive) may be written; all
+     * source rows within this filter's reach of them can be read. For point
+     * filters source and target may be the same array.
+     * 
+     * @param  band  The band to be computed.
+     */
+    protected abstract void filterRows(ImageBand band);
 }
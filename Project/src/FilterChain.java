@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A FilterChain is a filter that applies a sequence of other filters, one
+ * after the other.
+ * 
+ * Consecutive point filters in the chain are fused: their lookup tables are
+ * combined into one table where possible, and otherwise applied one after
+ * the other to small blocks of pixels that stay in the cache, so that a run
+ * of point filters costs a single pass over the image. Fusion stops at
+ * neighbourhood and geometric filters, which make up stages of their own.
+ * 
+ * A chain can be used like any other filter, including with the
+ * FilterEngine: every band runs all stages on the rows it needs, reading as
+ * far above and below itself as the stages reach together.
+ * 
+ * @version 1.2
+ */
+public class FilterChain extends Filter
+{
+    // the number of pixels a fused stage maps through all its tables at once
+    private static final int BLOCK_PIXELS = 4096;
+
+    private final List<Filter> filters;
+    private final List<Filter> stages;
+
+    /**
+     * Create a chain of filters. Chains inside the list are replaced by the
+     * filters they contain.
+     * @param name The name of the chain.
+     * @param filters The filters, in the order in which they are applied.
+     */
+    public FilterChain(String name, List<? extends Filter> filters)
+    {
+        super(name);
+        List<Filter> all = new ArrayList<>();
+        for(Filter filter : filters) {
+            if(filter instanceof FilterChain) {
+                all.addAll(((FilterChain) filter).getFilters());
+            }
+            else {
+                all.add(filter);
+            }
+        }
+        this.filters = Collections.unmodifiableList(all);
+        this.stages = Collections.unmodifiableList(fuse(all));
+    }
+
+    /**
+     * Return the filters of this chain.
+     * 
+     * @return  The filters, in the order in which they are applied.
+     */
+    public List<Filter> getFilters()
+    {
+        return filters;
+    }
+
+    /**
+     * Return the stages this chain is run in: one filter for every run of
+     * point filters, and the other filters as they are.
+     * 
+     * @return  The stages, in the order in which they are applied.
+     */
+    public List<Filter> getStages()
+    {
+        return stages;
+    }
+
+    /**
+     * Return the kind of this chain. A chain of point filters is a point
+     * filter; otherwise it is as demanding as its most demanding stage.
+     * 
+     * @return  The kind of this chain.
+     */
+    public Kind getKind()
+    {
+        Kind kind = Kind.POINT;
+        for(Filter stage : stages) {
+            if(stage.getKind().compareTo(kind) > 0) {
+                kind = stage.getKind();
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * Return how many rows above and below an output row the whole chain
+     * may read: the sum of the reaches of its stages.
+     * 
+     * @return  The reach of this chain, in rows.
+     */
+    public int getReach()
+    {
+        int reach = 0;
+        for(Filter stage : stages) {
+            reach += stage.getReach();
+        }
+        return reach;
+    }
+
+    /**
+     * Return true if every filter of this chain does not depend on the
+     * orientation of the image.
+     * 
+     * @return  true if this chain does not depend on the orientation.
+     */
+    public boolean isOrientationInvariant()
+    {
+        for(Filter filter : filters) {
+            if(!filter.isOrientationInvariant()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a chain of all filters of this chain, each scaled by a factor.
+     * 
+     * @param  factor  The scale of the copy the chain is meant for.
+     * @return  A chain for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        List<Filter> scaled = new ArrayList<>();
+        boolean changed = false;
+        for(Filter filter : filters) {
+            Filter scaledFilter = filter.scaledFor(factor);
+            changed |= scaledFilter != filter;
+            scaled.add(scaledFilter);
+        }
+        return changed ? new FilterChain(getName(), scaled) : this;
+    }
+
+    /**
+     * Compute the rows of a band by running every stage on the rows the
+     * following stages still need.
+     * 
+     * @param  band  The band to be computed.
+     */
+    protected void filterRows(ImageBand band)
+    {
+        if(stages.isEmpty()) {
+            int s = band.getSourceIndex(0, band.getFromY());
+            int t = band.getTargetIndex(0, band.getFromY());
+            System.arraycopy(band.getSource(), s, band.getTarget(), t,
+                             (band.getToY() - band.getFromY()) * band.getWidth());
+            return;
+        }
+        if(stages.size() == 1) {
+            stages.get(0).filterRows(band);
+            return;
+        }
+
+        int width = band.getWidth();
+        int height = band.getHeight();
+        int[] source = band.getSource();
+        int sourceY = band.getSourceY();
+        int remaining = getReach();
+        for(int i = 0; i < stages.size(); i++) {
+            Filter stage = stages.get(i);
+            remaining -= stage.getReach();
+            if(i == stages.size() - 1) {
+                stage.filterRows(new ImageBand(source, sourceY, band.getTarget(), band.getTargetY(),
+                                               width, height, band.getFromY(), band.getToY()));
+            }
+            else {
+                int fromY = Math.max(band.getFromY() - remaining, 0);
+                int toY = Math.min(band.getToY() + remaining, height);
+                int[] rows = new int[(toY - fromY) * width];
+                stage.filterRows(new ImageBand(source, sourceY, rows, fromY,
+                                               width, height, fromY, toY));
+                source = rows;
+                sourceY = fromY;
+            }
+        }
+    }
+
+    /**
+     * Split a list of filters into stages, fusing every run of point
+     * filters into a single stage.
+     */
+    private static List<Filter> fuse(List<Filter> filters)
+    {
+        List<Filter> stages = new ArrayList<>();
+        List<LookupTable> tables = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for(Filter filter : filters) {
+            if(filter instanceof PointFilter) {
+                LookupTable table = ((PointFilter) filter).getTable();
+                LookupTable combined = tables.isEmpty() ? null
+                                       : tables.get(tables.size() - 1).then(table);
+                if(combined != null) {
+                    tables.set(tables.size() - 1, combined);
+                }
+                else {
+                    tables.add(table);
+                }
+                names.add(filter.getName());
+            }
+            else {
+                if(!tables.isEmpty()) {
+                    stages.add(new FusedFilter(String.join(" + ", names), tables));
+                    tables = new ArrayList<>();
+                    names = new ArrayList<>();
+                }
+                stages.add(filter);
+            }
+        }
+        if(!tables.isEmpty()) {
+            stages.add(new FusedFilter(String.join(" + ", names), tables));
+        }
+        return stages;
+    }
+
+    /**
+     * A point filter that maps every pixel through a sequence of lookup
+     * tables, in blocks small enough to stay in the cache.
+     */
+    private static class FusedFilter extends Filter
+    {
+        private final LookupTable[] tables;
+
+        FusedFilter(String name, List<LookupTable> tables)
+        {
+            super(name);
+            this.tables = tables.toArray(new LookupTable[0]);
+        }
+
+        public Kind getKind()
+        {
+            return Kind.POINT;
+        }
+
+        protected void filterRows(ImageBand band)
+        {
+            int s = band.getSourceIndex(0, band.getFromY());
+            int t = band.getTargetIndex(0, band.getFromY());
+            int count = (band.getToY() - band.getFromY()) * band.getWidth();
+            int[] target = band.getTarget();
+            for(int done = 0; done < count; done += BLOCK_PIXELS) {
+                int block = Math.min(BLOCK_PIXELS, count - done);
+                tables[0].apply(band.getSource(), s + done, target, t + done, block);
+                for(int i = 1; i < tables.length; i++) {
+                    tables[i].apply(target, t + done, target, t + done, block);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A FilterEngine applies filters using all processor cores. The image is
+ * split into bands of rows that are filtered in parallel on a ForkJoinPool.
+ * 
+ * Point filters work on the image in place. For neighbourhood and geometric
+ * filters a single read-only copy of the original is shared by all bands, so
+ * the rows a band needs above and below itself (its halo) are simply read
+ * from that copy. The result is therefore exactly the same as that of
+ * Filter.apply. When the original is to be kept anyway, filtered writes the
+ * result into a new image instead and reads the original itself, so that
+ * nothing is copied at all.
+ * 
+ * The work can be followed and cancelled through a Progress: each band
+ * reports its rows when it is done, and no new band is started once the
+ * work has been cancelled.
+ * 
+ * A MappedImage, which does not fit on the heap, is filtered a chunk of
+ * rows at a time: the chunk's source rows, with the rows within the
+ * filter's reach above and below it, are read into an array, filtered in
+ * parallel bands as above, and written to a new MappedImage. The heap then
+ * only ever holds a chunk and its halo.
+ * 
+ * New images, copies and chunk arrays are borrowed from the shared
+ * PixelPool, and the arrays used only during a call are given back to it
+ * when the call has finished. (After a cancellation they are left to the
+ * garbage collector instead, since bands that were already running may
+ * still be using them.)
+ * 
+ * @version 1.4
+ */
+public class FilterEngine
+{
+    // Bands smaller than this (in pixels) are not split any further.
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+    // Bands are kept at least this many times as high as the filter's reach,
+    // so that the halo rows do not dominate the work of a band.
+    private static final int MIN_BAND_REACH_RATIO = 8;
+    // The number of pixels of a MappedImage filtered at a time, unless the
+    // filter's reach needs more.
+    private static final int CHUNK_PIXELS = 1 << 22;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a FilterEngine that uses one thread per processor core.
+     */
+    public FilterEngine()
+    {
+        this(new ForkJoinPool());
+    }
+
+    /**
+     * Create a FilterEngine that runs its work on a given pool.
+     * @param pool The pool to run the filter bands on.
+     */
+    public FilterEngine(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Return the pool this engine runs its work on.
+     * @return The pool of this engine.
+     */
+    public ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Apply a filter to an image.
+     * @param filter The filter to apply.
+     * @param image The image to be changed by the filter.
+     */
+    public void apply(Filter filter, OFImage image)
+    {
+        apply(filter, image, new Progress());
+    }
+
+    /**
+     * Apply a filter to an image, reporting the rows done to a Progress.
+     * @param filter The filter to apply.
+     * @param image The image to be changed by the filter.
+     * @param progress The progress to report to and check for cancellation.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled; the image is then left partly filtered.
+     */
+    public void apply(Filter filter, OFImage image, Progress progress)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] target = image.getPixels();
+        if(filter.getKind() == Filter.Kind.POINT) {
+            run(filter, target, target, width, height, progress);
+            return;
+        }
+        int[] source = PixelPool.getShared().borrow(target.length);
+        System.arraycopy(target, 0, source, 0, target.length);
+        run(filter, source, target, width, height, progress);
+        PixelPool.getShared().release(source);
+    }
+
+    /**
+     * Apply a filter to an image without changing it, reporting the rows
+     * done to a Progress. The filter writes straight into the result.
+     * @param filter The filter to apply.
+     * @param image The image to filter; it is only read.
+     * @param progress The progress to report to and check for cancellation.
+     * @return A new image holding the filtered pixels.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled.
+     */
+    public OFImage filtered(Filter filter, OFImage image, Progress progress)
+    {
+        OFImage result = OFImage.borrow(image.getWidth(), image.getHeight());
+        run(filter, image.getPixels(), result.getPixels(), image.getWidth(), image.getHeight(), progress);
+        return result;
+    }
+
+    /**
+     * Filter all rows of an image in parallel bands.
+     */
+    private void run(Filter filter, int[] source, int[] target, int width, int height, Progress progress)
+    {
+        int minRows = Math.max(MIN_BAND_PIXELS / Math.max(width, 1),
+                               MIN_BAND_REACH_RATIO * filter.getReach());
+        progress.start(height);
+        pool.invoke(new BandTask(filter, source, 0, target, 0, width, height, minRows, progress, 0, height));
+    }
+
+    /**
+     * Apply a filter to a MappedImage, reporting the rows done to a Progress.
+     * The result is a new MappedImage; the image itself is not changed.
+     * @param filter The filter to apply.
+     * @param image The image to filter.
+     * @param progress The progress to report to and check for cancellation.
+     * @return The filtered image.
+     * @throws IOException if the file for the result cannot be created.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled; the result is then deleted.
+     */
+    public MappedImage apply(Filter filter, MappedImage image, Progress progress) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int reach = filter.getReach();
+        boolean inPlace = filter.getKind() == Filter.Kind.POINT;
+        int chunkRows = Math.max(CHUNK_PIXELS / width, MIN_BAND_REACH_RATIO * reach);
+        int minRows = Math.max(MIN_BAND_PIXELS / width, MIN_BAND_REACH_RATIO * reach);
+        PixelPool pixels = PixelPool.getShared();
+        int[] source = pixels.borrow(Math.min(chunkRows + 2 * reach, height) * width);
+        int[] target = inPlace ? source : pixels.borrow(Math.min(chunkRows, height) * width);
+        MappedImage result = new MappedImage(width, height);
+        try {
+            progress.start(height);
+            for(int fromY = 0; fromY < height; fromY += chunkRows) {
+                int toY = Math.min(fromY + chunkRows, height);
+                int sourceY = Math.max(fromY - reach, 0);
+                image.readRows(sourceY, Math.min(toY + reach, height), source, 0);
+                int targetY = inPlace ? sourceY : fromY;
+                pool.invoke(new BandTask(filter, source, sourceY, target, targetY, width, height,
+                                         minRows, progress, fromY, toY));
+                result.writeRows(fromY, toY, target, (fromY - targetY) * width);
+            }
+        }
+        catch(RuntimeException exc) {
+            result.close();
+            throw exc;
+        }
+        pixels.release(source);
+        if(!inPlace) {
+            pixels.release(target);
+        }
+        return result;
+    }
+
+    /**
+     * A task that filters a band of rows, splitting it in halves as long as
+     * it is large enough to be worth running in parallel.
+     */
+    private static class BandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Filter filter;
+        private final int[] source;
+        private final int sourceY;
+        private final int[] target;
+        private final int targetY;
+        private final int width;
+        private final int height;
+        private final int minRows;
+        private final Progress progress;
+        private final int fromY;
+        private final int toY;
+
+        BandTask(Filter filter, int[] source, int sourceY, int[] target, int targetY,
+                 int width, int height, int minRows, Progress progress, int fromY, int toY)
+        {
+            this.filter = filter;
+            this.source = source;
+            this.sourceY = sourceY;
+            this.target = target;
+            this.targetY = targetY;
+            this.width = width;
+            this.height = height;
+            this.minRows = minRows;
+            this.progress = progress;
+            this.fromY = fromY;
+            this.toY = toY;
+        }
+
+        protected void compute()
+        {
+            int rows = toY - fromY;
+            if(rows < 2 || rows / 2 < minRows) {
+                progress.checkCancelled();
+                filter.filterRows(new ImageBand(source, sourceY, target, targetY, width, height, fromY, toY));
+                progress.advance(rows);
+            }
+            else {
+                int middle = fromY + rows / 2;
+                invokeAll(new BandTask(filter, source, sourceY, target, targetY, width, height,
+                                       minRows, progress, fromY, middle),
+                          new BandTask(filter, source, sourceY, target, targetY, width, height,
+                                       minRows, progress, middle, toY));
+            }
+        }
+    }
+}
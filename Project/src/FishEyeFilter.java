@@ -3,7 +3,7 @@
  * (Works especially well on portraits.)
  * 
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 1.1
  */
 public class FishEyeFilter extends Filter
 {
@@ -11,32 +11,78 @@ public class FishEyeFilter extends Filter
     private final static int SCALE = 20;   // this defines the strenght of the filter
     private final static double TWO_PI = 2 * Math.PI;
 
+    private final double scale;
+
     /**
      * Constructor for objects of class LensFilter.
      * @param name The name of the filter.
      */
     public FishEyeFilter(String name)
+    {
+        this(name, SCALE);
+    }
+
+    /**
+     * Constructor for a filter with a different strength, for scaled copies.
+     * @param name The name of the filter.
+     * @param scale The largest distance a pixel is moved.
+     */
+    private FishEyeFilter(String name, double scale)
     {
         super(name);
+        this.scale = scale;
     }
 
     /**
-     * Apply this filter to an image.
+     * Return the kind of this filter.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  Kind.GEOMETRIC, since pixels are moved around.
      */
-    public void apply(OFImage image)
+    public Kind getKind()
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        OFImage original = new OFImage(image);
+        return Kind.GEOMETRIC;
+    }
+
+    /**
+     * Return how many rows above or below its place a pixel may come from.
+     * 
+     * @return  The reach of this filter, in rows.
+     */
+    public int getReach()
+    {
+        return (int) Math.ceil(scale);
+    }
+
+    /**
+     * Return a filter that moves pixels by distances scaled by a factor.
+     * 
+     * @param  factor  The scale of the copy the filter is meant for.
+     * @return  A filter for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        return factor == 1 ? this : new FishEyeFilter(getName(), scale * factor);
+    }
+
+    /**
+     * Compute the rows of a band.
+     * 
+     * @param  band  The band to be computed.
+     */
+    protected void filterRows(ImageBand band)
+    {
+        int height = band.getHeight();
+        int width = band.getWidth();
 
         int[] xa = computeXArray(width);
-        int[] ya = computeYArray(height);
         
-        for(int y = 0; y < height; y++) {
+        int[] source = band.getSource();
+        int[] target = band.getTarget();
+        for(int y = band.getFromY(); y < band.getToY(); y++) {
+            int row = band.getTargetIndex(0, y);
+            int sourceRow = band.getSourceIndex(0, y + computeYOffset(y, height));
             for(int x = 0; x < width; x++) {
-                image.setPixel(x, y, original.getPixel(x + xa[x], y + ya[y]));
+                target[row + x] = source[sourceRow + x + xa[x]];
             }
         }
     }
@@ -50,22 +96,17 @@ public class FishEyeFilter extends Filter
         int[] xArray = new int[width];
         
         for(int i=0; i < width; i++) {
-            xArray[i] = (int)(Math.sin( ((double)i / width) * TWO_PI) * SCALE);
+            xArray[i] = (int)(Math.sin( ((double)i / width) * TWO_PI) * scale);
         }
         return xArray;
     }
 
     /**
-     * Compute and return an array of vertical offsets for each pixel row.
-     * These can then be applied as the vertical offset for each pixel.
+     * Compute and return the vertical offset for a pixel row.
+     * This can then be applied as the vertical offset for each pixel in it.
      */
-    private int[] computeYArray(int height)
+    private int computeYOffset(int y, int height)
     {
-        int[] yArray = new int[height];
-        
-        for(int i=0; i < height; i++) {
-            yArray[i] = (int)(Math.sin( ((double)i / height) * TWO_PI) * SCALE);
-        }
-        return yArray;
+        return (int)(Math.sin( ((double)y / height) * TWO_PI) * scale);
     }
 }
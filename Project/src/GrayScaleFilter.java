@@ -1,12 +1,10 @@
-import java.awt.Color;
-
 /**
  * An image filter to remove color from an image.
  * 
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class GrayScaleFilter extends Filter
+public class GrayScaleFilter extends PointFilter
 {
 	/**
 	 * Constructor for objects of class GrayScaleFilter.
@@ -18,20 +16,15 @@ public class GrayScaleFilter extends Filter
 	}
 
     /**
-     * Apply this filter to an image.
+     * Replace each color by the gray of the same brightness.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  The lookup table of this filter.
      */
-    public void apply(OFImage image)
+    protected LookupTable createTable()
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                Color pix = image.getPixel(x, y);
-                int avg = (pix.getRed() + pix.getGreen() + pix.getBlue()) / 3;
-                image.setPixel(x, y, new Color(avg, avg, avg));
-            }
-        }
+        return LookupTable.forBrightness(sum -> {
+            int avg = sum / 3;
+            return (avg << 16) | (avg << 8) | avg;
+        });
     }
 }
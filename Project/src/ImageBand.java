@@ -0,0 +1,131 @@
+/**
+ * An ImageBand describes a horizontal strip of rows that a filter has to
+ * compute. It gives access to the original pixels (the source) and to the
+ * pixels of the result (the target), both as packed 0xRRGGBB int arrays.
+ * 
+ * Coordinates are always those of the whole image; the band translates them
+ * into array indices, so source and target may hold only part of the image.
+ * 
+ * @version 1.0
+ */
+public class ImageBand
+{
+    private final int[] source;
+    private final int sourceY;
+    private final int[] target;
+    private final int targetY;
+    private final int width;
+    private final int height;
+    private final int fromY;
+    private final int toY;
+
+    /**
+     * Create a band.
+     * @param source The original pixels.
+     * @param sourceY The image row held by the first row of source.
+     * @param target The pixels of the result.
+     * @param targetY The image row held by the first row of target.
+     * @param width The width of the image.
+     * @param height The height of the whole image.
+     * @param fromY The first row to compute.
+     * @param toY The row after the last row to compute.
+     */
+    public ImageBand(int[] source, int sourceY, int[] target, int targetY,
+                     int width, int height, int fromY, int toY)
+    {
+        this.source = source;
+        this.sourceY = sourceY;
+        this.target = target;
+        this.targetY = targetY;
+        this.width = width;
+        this.height = height;
+        this.fromY = fromY;
+        this.toY = toY;
+    }
+
+    /**
+     * @return The original pixels.
+     */
+    public int[] getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return The pixels of the result.
+     */
+    public int[] getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * @return The image row held by the first row of the source array.
+     */
+    public int getSourceY()
+    {
+        return sourceY;
+    }
+
+    /**
+     * @return The image row held by the first row of the target array.
+     */
+    public int getTargetY()
+    {
+        return targetY;
+    }
+
+    /**
+     * @return The width of the image.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The height of the whole image.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return The first row of this band.
+     */
+    public int getFromY()
+    {
+        return fromY;
+    }
+
+    /**
+     * @return The row after the last row of this band.
+     */
+    public int getToY()
+    {
+        return toY;
+    }
+
+    /**
+     * Return the index of a pixel in the source array.
+     * @param x The x position of the pixel.
+     * @param y The y position of the pixel in the image.
+     * @return The index of the pixel in getSource().
+     */
+    public int getSourceIndex(int x, int y)
+    {
+        return (y - sourceY) * width + x;
+    }
+
+    /**
+     * Return the index of a pixel in the target array.
+     * @param x The x position of the pixel.
+     * @param y The y position of the pixel in the image.
+     * @return The index of the pixel in getTarget().
+     */
+    public int getTargetIndex(int x, int y)
+    {
+        return (y - targetY) * width + x;
+    }
+}
@@ -1,5 +1,55 @@
+import java.io.File;
+
+/**
+ * ImageDriver starts the ImageViewer. Given directories and filters on the
+ * command line, it filters all images in a directory without a GUI instead:
+ * 
+ *     java ImageDriver <input dir> <output dir> <filters> [<threads>]
+ * 
+ * where filters is a list of filter names separated by commas, such as
+ * "Grayscale,Smooth,Edge Detection". Files are decoded, filtered and
+ * encoded by separate groups of threads, and read and written by a group
+ * of I/O threads. threads is either the number of threads of each of the
+ * first three groups, or the numbers for decoding, filtering, encoding and
+ * optionally I/O separated by colons, such as 2:4:2 or 2:4:2:64. By
+ * default the first three groups have one thread per processor core, and
+ * there are AsyncImageFileManager.DEFAULT_IO_THREADS I/O threads.
+ * 
+ * @author Michael Kölling and David J. Barnes.
+ * @version 1.3
+ */
 public class ImageDriver {
-	public static void main(String[] args) {
-		ImageViewer iv = new ImageViewer();
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			ImageViewer iv = new ImageViewer();
+			return;
+		}
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("usage: java ImageDriver [<input dir> <output dir> <filters> [<threads>]]");
+			System.exit(2);
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		int[] threads = { cores, cores, cores, AsyncImageFileManager.DEFAULT_IO_THREADS };
+		int failed;
+		try { // usage errors, including directories that cannot be used
+			if (args.length == 4) {
+				String[] counts = args[3].split(":");
+				if (counts.length != 1 && counts.length != 3 && counts.length != 4) {
+					throw new IllegalArgumentException("threads must be one number, or three or four separated by colons: "
+							+ args[3]);
+				}
+				for (int i = 0; i < Math.max(counts.length, 3); i++) {
+					threads[i] = Integer.parseInt(counts[counts.length == 1 ? 0 : i]);
+				}
+			}
+			BatchProcessor processor = new BatchProcessor(BatchProcessor.parseFilters(args[2]), threads[0], threads[1],
+					threads[2], threads[3], System.out);
+			failed = processor.run(new File(args[0]), new File(args[1]));
+		} catch (IllegalArgumentException exc) {
+			System.err.println(exc.getMessage());
+			System.exit(2);
+			return;
+		}
+		System.exit(failed == 0 ? 0 : 1);
 	}
 }
\ No newline at end of file
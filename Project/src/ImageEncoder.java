@@ -0,0 +1,404 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * An ImageEncoder writes images in one format, JPG or PNG, with a chosen
+ * JPG quality or PNG compression level.
+ *
+ * Finding an ImageWriter for a format is slow, so writers are kept once
+ * they have been used and reused by every encoder of the same format
+ * (one at a time; a writer is not used by two threads at once). Images
+ * are encoded into memory, or straight into a file for a MappedImage,
+ * without going through ImageIO's disk cache.
+ *
+ * A file is saved by writing it under a temporary name in the same
+ * directory and then renaming it, so that the file is either replaced as a
+ * whole or not at all: a failed or cancelled save leaves what was there
+ * before.
+ *
+ * Every save reports how long encoding and writing took and how large the
+ * file is, to weigh file size against speed.
+ *
+ * @version 1.1
+ */
+public class ImageEncoder
+{
+    // The writers that are not in use, by format.
+    private static final Map<String, Queue<ImageWriter>> idleWriters = new ConcurrentHashMap<>();
+
+    private final String format;
+    private float quality = -1;          // the JPG quality, or -1 for the writer's default
+    private int compressionLevel = -1;   // the PNG compression level, or -1 for the writer's default
+
+    /**
+     * Create an encoder for a format.
+     * @param format The format: "jpg" (or "jpeg") or "png".
+     * @throws IllegalArgumentException if there is no writer for the format.
+     */
+    public ImageEncoder(String format)
+    {
+        String name = format.toLowerCase(Locale.ROOT);
+        this.format = name.equals("jpeg") ? "jpg" : name;
+        if(!this.format.equals("jpg") && !this.format.equals("png")
+           || !ImageIO.getImageWritersByFormatName(this.format).hasNext()) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+    }
+
+    /**
+     * Create an encoder for the format a file name asks for: PNG if it
+     * ends in ".png", otherwise JPG.
+     * @param file The file to be written.
+     * @return The encoder.
+     */
+    public static ImageEncoder forFile(File file)
+    {
+        return new ImageEncoder(file.getName().toLowerCase(Locale.ROOT).endsWith(".png") ? "png" : "jpg");
+    }
+
+    /**
+     * @return The format of this encoder, "jpg" or "png".
+     */
+    public String getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * @return The JPG quality, from 0 to 1, or -1 if the writer's default is used.
+     */
+    public float getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * Set the JPG quality: 1 for the largest files and the fewest artefacts,
+     * 0 for the smallest. It has no effect on PNG files.
+     * @param quality The quality from 0 to 1, or -1 for the writer's default.
+     */
+    public void setQuality(float quality)
+    {
+        if(quality != -1 && !(quality >= 0 && quality <= 1)) {
+            throw new IllegalArgumentException("quality must be from 0 to 1: " + quality);
+        }
+        this.quality = quality;
+    }
+
+    /**
+     * @return The PNG compression level, from 0 to 9, or -1 if the writer's
+     *         default is used.
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the PNG compression level: 9 for the smallest files and the
+     * slowest encoding, 0 for no compression at all. It has no effect on
+     * JPG files; PNG is lossless at every level.
+     * @param level The level from 0 to 9, or -1 for the writer's default.
+     */
+    public void setCompressionLevel(int level)
+    {
+        if(level < -1 || level > 9) {
+            throw new IllegalArgumentException("compression level must be from 0 to 9: " + level);
+        }
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Encode an image into memory.
+     * @param image The image to encode.
+     * @return The bytes of the image file.
+     * @throws IOException if the image cannot be encoded.
+     */
+    public byte[] encode(OFImage image) throws IOException
+    {
+        return encode(image, new Progress());
+    }
+
+    /**
+     * Encode an image into memory, reporting how far the encoder has got.
+     * @param image The image to encode.
+     * @param progress The progress to report to and check for cancellation.
+     * @return The bytes of the image file.
+     * @throws IOException if the image cannot be encoded.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled.
+     */
+    public byte[] encode(OFImage image, Progress progress) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ImageOutputStream output = new MemoryCacheImageOutputStream(bytes)) {
+            write(image, output, progress);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Save an image to a file: encode it into memory, then write the file
+     * under a temporary name and rename it.
+     * @param image The image to save.
+     * @param file The file to save to.
+     * @param progress The progress to report to and check for cancellation.
+     * @return How long saving took and how large the file is.
+     * @throws IOException if the image cannot be encoded or the file cannot
+     *         be written; the file is then left as it was.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled before the file is replaced; the file is then left
+     *         as it was. The progress is committed just before that.
+     */
+    public Result save(OFImage image, File file, Progress progress) throws IOException
+    {
+        long start = System.nanoTime();
+        byte[] data = encode(image, progress);
+        long encoded = System.nanoTime();
+        writeAtomically(data, file, progress);
+        return new Result(data.length, encoded - start, System.nanoTime() - encoded);
+    }
+
+    /**
+     * Save an image that is too large for the heap to a file. It is encoded
+     * straight into a temporary file, which is then renamed; encoding and
+     * writing are therefore timed together.
+     * @param image The image to save.
+     * @param file The file to save to.
+     * @param progress The progress to report to and check for cancellation.
+     * @return How long saving took and how large the file is.
+     * @throws IOException if the image cannot be encoded or the file cannot
+     *         be written; the file is then left as it was.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled before the file is replaced; the file is then left
+     *         as it was. The progress is committed just before that.
+     */
+    public Result save(MappedImage image, File file, Progress progress) throws IOException
+    {
+        long start = System.nanoTime();
+        File temp = tempFileFor(file);
+        try {
+            try(ImageOutputStream output = new FileImageOutputStream(temp)) {
+                write(image.asBufferedImage(), output, progress);
+            }
+            long size = temp.length();
+            progress.commit();
+            replace(temp, file);
+            return new Result(size, System.nanoTime() - start, 0);
+        }
+        finally {
+            temp.delete(); // if it was not renamed
+        }
+    }
+
+    /**
+     * Write bytes to a file under a temporary name in the same directory,
+     * then rename it to the file, replacing what was there.
+     * @param data The bytes to write.
+     * @param file The file to write to.
+     * @throws IOException if the file cannot be written; it is then left as
+     *         it was.
+     */
+    public static void writeAtomically(byte[] data, File file) throws IOException
+    {
+        writeAtomically(data, file, new Progress());
+    }
+
+    /**
+     * Write bytes to a file as the method above does, unless the progress is
+     * cancelled before the file is renamed. The progress is committed just
+     * before that, so a save that is cancelled in time leaves the file as
+     * it was, and one that is not cannot be cancelled any more.
+     */
+    private static void writeAtomically(byte[] data, File file, Progress progress) throws IOException
+    {
+        File temp = tempFileFor(file);
+        try {
+            Files.write(temp.toPath(), data);
+            progress.commit();
+            replace(temp, file);
+        }
+        finally {
+            temp.delete(); // if it was not renamed
+        }
+    }
+
+    /**
+     * Encode an image to a stream with a writer from the cache.
+     */
+    private void write(BufferedImage image, ImageOutputStream output, Progress progress) throws IOException
+    {
+        ImageWriter writer = takeWriter();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            float explicit = format.equals("jpg") ? quality
+                           : compressionLevel >= 0 ? 1 - compressionLevel / 9f : -1;
+            if(explicit >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if(param.getCompressionType() == null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(explicit);
+            }
+            writer.setOutput(output);
+            progress.start(100);
+            writer.addIIOWriteProgressListener(new WriteProgress(progress));
+            writer.write(null, new IIOImage(image, null, null), param);
+            progress.checkCancelled();
+        }
+        finally {
+            writer.reset(); // forgets the output and the listener
+            idleWriters.get(format).add(writer);
+        }
+    }
+
+    /**
+     * Take an idle writer for the format of this encoder, or find a new one.
+     */
+    private ImageWriter takeWriter()
+    {
+        ImageWriter writer = idleWriters.computeIfAbsent(format, key -> new ConcurrentLinkedQueue<>()).poll();
+        if(writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+            writer = writers.next();
+        }
+        return writer;
+    }
+
+    /**
+     * Return a new empty file to write to in place of a file.
+     */
+    private static File tempFileFor(File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + file.getName() + "-", ".tmp", dir);
+    }
+
+    /**
+     * Rename a file to another one, replacing it, in one step if the file
+     * system can do that.
+     */
+    private static void replace(File from, File to) throws IOException
+    {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException exc) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * How long saving an image took, and how large its file is.
+     */
+    public static class Result
+    {
+        private final long bytes;
+        private final long encodeNanos;
+        private final long writeNanos;
+
+        /**
+         * @param bytes The size of the file.
+         * @param encodeNanos The time encoding took, in nanoseconds.
+         * @param writeNanos The time writing the file took, in nanoseconds.
+         */
+        public Result(long bytes, long encodeNanos, long writeNanos)
+        {
+            this.bytes = bytes;
+            this.encodeNanos = encodeNanos;
+            this.writeNanos = writeNanos;
+        }
+
+        /**
+         * @return The size of the file in bytes.
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return The time encoding took, in nanoseconds.
+         */
+        public long getEncodeNanos()
+        {
+            return encodeNanos;
+        }
+
+        /**
+         * @return The time writing the file took, in nanoseconds.
+         */
+        public long getWriteNanos()
+        {
+            return writeNanos;
+        }
+
+        /**
+         * @return A summary such as "532 KB, encoded in 48 ms, written in 3 ms".
+         */
+        public String toString()
+        {
+            return String.format(Locale.ROOT, "%d KB, encoded in %d ms, written in %d ms",
+                                 (bytes + 1023) / 1024, encodeNanos / 1000000, writeNanos / 1000000);
+        }
+    }
+
+    /**
+     * Passes on how far a writer has got to a Progress, and stops the writer
+     * when the progress is cancelled.
+     */
+    private static class WriteProgress implements IIOWriteProgressListener
+    {
+        private final Progress progress;
+        // the percentage reported so far
+        private int reported;
+
+        WriteProgress(Progress progress)
+        {
+            this.progress = progress;
+        }
+
+        public void imageProgress(ImageWriter source, float percentageDone)
+        {
+            int done = (int) percentageDone;
+            progress.advance(done - reported);
+            reported = done;
+            if(progress.isCancelled()) {
+                source.abort();
+            }
+        }
+
+        public void imageComplete(ImageWriter source)
+        {
+            progress.advance(100 - reported);
+            reported = 100;
+        }
+
+        public void imageStarted(ImageWriter source, int imageIndex) {}
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+        public void thumbnailComplete(ImageWriter source) {}
+        public void writeAborted(ImageWriter source) {}
+    }
+}
@@ -1,63 +1,639 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /**
  * ImageFileManager is a small utility class with static methods to load
- * and save images.
- * 
- * The files on disk can be in JPG or PNG image format. For files written
- * by this class, the format is determined by the constant IMAGE_FORMAT.
- * 
+ * images, and to encode them for saving.
+ *
+ * The files on disk can be in JPG or PNG image format. For images encoded
+ * by this class, the format is determined by the constant IMAGE_FORMAT;
+ * they are encoded by an ImageEncoder with its default settings, which
+ * also saves images to files.
+ *
+ * Images can be loaded in part: the size of an image can be read from the
+ * file header alone, and loading can be limited to a region of the image
+ * and to every n-th pixel of it (subsampling), so that a preview of a huge
+ * image costs only as much as the preview itself. Where the decoder can
+ * write the pixels straight into an OFImage, no other copy of them is made.
+ *
+ * While an image is being decoded, an UpdateListener can be told about
+ * the part of it that has been decoded so far, so that it can be shown at
+ * once and refined as decoding goes on: a JPG is decoded a band of rows at
+ * a time, or, if it is progressive, as a whole image that gets sharper
+ * with every scan.
+ *
+ * Images too large for the heap can be loaded into a MappedImage (an
+ * ImageEncoder saves them).
+ *
+ * Images can also be decoded from and encoded to bytes in memory, so that
+ * reading and writing the files can be left to an AsyncImageFileManager.
+ *
  * @author Michael Kölling and David J. Barnes.
- * @version 2.0
+ * @version 2.6
  */
 public class ImageFileManager
 {
-    // A constant for the image format that this writer uses for writing.
-    // Available formats are "jpg" and "png".
-    private static final String IMAGE_FORMAT = "jpg";
-    
+    /**
+     * The image format that this writer uses for writing.
+     * Available formats are "jpg" and "png".
+     */
+    public static final String IMAGE_FORMAT = "jpg";
+    // The most pixels decoded at once into a MappedImage, for images that
+    // cannot be decoded into it directly.
+    private static final int STRIP_PIXELS = 1 << 22;
+    // The least time between two calls of an UpdateListener, in nanoseconds,
+    // other than at the end of a pass of a progressive image.
+    private static final long UPDATE_INTERVAL = 50000000;
+
     /**
      * Read an image file from disk and return it as an image. This method
-     * can read JPG and PNG file formats. In case of any problem (e.g the file 
-     * does not exist, is in an undecodable format, or any other read error) 
+     * can read JPG and PNG file formats. In case of any problem (e.g the file
+     * does not exist, is in an undecodable format, or any other read error)
      * this method returns null.
-     * 
+     *
      * @param imageFile  The image file to be loaded.
      * @return           The image object or null if it could not be read.
      */
     public static OFImage loadImage(File imageFile)
     {
-        try {
-            BufferedImage image = ImageIO.read(imageFile);
-            if(image == null || (image.getWidth(null) < 0)) {
-                // we could not load the image - probably invalid file format
+        return loadImage(imageFile, null, 1, new Progress());
+    }
+
+    /**
+     * Read every n-th pixel of every n-th row of an image file, giving an
+     * image n times smaller than the one in the file.
+     *
+     * @param imageFile    The image file to be loaded.
+     * @param subsampling  n, the distance between the pixels that are read (at least 1).
+     * @return             The image object or null if it could not be read.
+     */
+    public static OFImage loadImage(File imageFile, int subsampling)
+    {
+        return loadImage(imageFile, null, subsampling, new Progress());
+    }
+
+    /**
+     * Read a region of an image file, subsampled as in loadImage.
+     *
+     * @param imageFile    The image file to be loaded.
+     * @param region       The part of the image to read; it is cut to the image.
+     * @param subsampling  The distance between the pixels that are read (at least 1).
+     * @return             The image object or null if it could not be read,
+     *                     or if the region lies outside the image.
+     */
+    public static OFImage loadRegion(File imageFile, Rectangle region, int subsampling)
+    {
+        return loadImage(imageFile, region, subsampling, new Progress());
+    }
+
+    /**
+     * Read an image file, or a region of it, subsampled as in loadImage, and
+     * report how far the decoder has got to a Progress.
+     *
+     * @param imageFile    The image file to be loaded.
+     * @param region       The part of the image to read, or null for all of it.
+     * @param subsampling  The distance between the pixels that are read (at least 1).
+     * @param progress     The progress to report to and check for cancellation.
+     * @return             The image object or null if it could not be read.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled while the image is read.
+     */
+    public static OFImage loadImage(File imageFile, Rectangle region, int subsampling, Progress progress)
+    {
+        return loadImage(imageFile, region, subsampling, progress, null);
+    }
+
+    /**
+     * Read an image file, or a region of it, as the method above does, and
+     * tell a listener about the image as decoded so far while it is read.
+     *
+     * @param imageFile    The image file to be loaded.
+     * @param region       The part of the image to read, or null for all of it.
+     * @param subsampling  The distance between the pixels that are read (at least 1).
+     * @param progress     The progress to report to and check for cancellation.
+     * @param listener     The listener to tell about the decoded part, or null.
+     * @return             The image object or null if it could not be read.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled while the image is read.
+     */
+    public static OFImage loadImage(File imageFile, Rectangle region, int subsampling, Progress progress,
+                                    UpdateListener listener)
+    {
+        if(subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + subsampling);
+        }
+        try(ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            return input != null ? read(input, region, subsampling, progress, listener) : null;
+        }
+        catch(IOException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode an image from the content of an image file, such as one read
+     * by an AsyncImageFileManager. Unlike loadImage, this reports why the
+     * image could not be decoded.
+     *
+     * @param data  The bytes of the file.
+     * @return      The image.
+     * @throws IOException if the data is not an image in a known format, or
+     *         cannot be decoded.
+     */
+    public static OFImage decodeImage(byte[] data) throws IOException
+    {
+        try(ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            return read(input, null, 1, new Progress(), null);
+        }
+    }
+
+    /**
+     * Encode an image in the format of IMAGE_FORMAT, with the default
+     * settings of an ImageEncoder.
+     *
+     * @param image  The image to encode.
+     * @return       The bytes of the image file.
+     * @throws IOException if the image cannot be encoded.
+     */
+    public static byte[] encodeImage(OFImage image) throws IOException
+    {
+        return new ImageEncoder(IMAGE_FORMAT).encode(image);
+    }
+
+    /**
+     * Read an image file, or a region of it, into a MappedImage, for images
+     * too large for the heap. JPG and PNG images without alpha are decoded
+     * straight into the file of the MappedImage; other images are decoded
+     * once, in their own layout, into a temporary file, and converted from
+     * there a strip of rows at a time.
+     *
+     * @param imageFile  The image file to be loaded.
+     * @param region     The part of the image to read, or null for all of it.
+     * @param progress   The progress to report to and check for cancellation.
+     * @return           The image or null if it could not be read.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled while the image is read.
+     */
+    public static MappedImage loadLargeImage(File imageFile, Rectangle region, Progress progress)
+    {
+        MappedImage image = null;
+        try(ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            ImageReader reader = readerFor(input);
+            if(reader == null) {
                 return null;
             }
-            return new OFImage(image);
+            try {
+                Rectangle area = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                if(region != null) {
+                    area = area.intersection(region);
+                    if(area.isEmpty()) {
+                        return null;
+                    }
+                }
+                image = new MappedImage(area.width, area.height);
+                if(decodesToRGB(reader)) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(area);
+                    param.setDestination(image.asBufferedImage());
+                    progress.start(100);
+                    reader.addIIOReadProgressListener(new ReadProgress(progress));
+                    reader.read(0, param);
+                    progress.checkCancelled();
+                }
+                else {
+                    readConverted(reader, area, image, progress);
+                }
+                MappedImage loaded = image;
+                image = null; // kept, since it is returned
+                return loaded;
+            }
+            finally {
+                reader.dispose();
+            }
         }
         catch(IOException exc) {
             return null;
         }
+        finally {
+            if(image != null) {
+                image.close();
+            }
+        }
     }
 
     /**
-     * Write an image file to disk. The file format is JPG. In case of any 
-     * problem the method just silently returns.
-     * 
-     * @param image  The image to be saved.
-     * @param file   The file to save to.
+     * Decode an image that cannot be decoded straight into a MappedImage,
+     * in one pass, into a temporary file laid out as the reader's own image
+     * type. Then convert it to RGB into the MappedImage a strip of rows at
+     * a time. Decoding counts for the first half of the progress,
+     * converting for the second.
      */
-    public static void saveImage(OFImage image, File file)
+    private static void readConverted(ImageReader reader, Rectangle area, MappedImage image, Progress progress)
+        throws IOException
     {
-        try {
-            ImageIO.write(image, IMAGE_FORMAT, file);
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if(!types.hasNext()) {
+            throw new IOException("no image type to decode into");
+        }
+        ImageTypeSpecifier type = types.next();
+        SampleModel model = type.getSampleModel(area.width, area.height);
+        try(MappedBuffer buffer = new MappedBuffer(model)) {
+            ColorModel colors = type.getColorModel();
+            BufferedImage decoded = new BufferedImage(colors, Raster.createWritableRaster(model, buffer, null),
+                                                      colors.isAlphaPremultiplied(), null);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(area);
+            param.setDestination(decoded);
+            progress.start(200);
+            reader.addIIOReadProgressListener(new ReadProgress(progress));
+            reader.read(0, param);
+            progress.checkCancelled();
+
+            int rows = Math.max(1, STRIP_PIXELS / area.width);
+            int[] pixels = new int[rows * area.width];
+            for(int y = 0; y < area.height; y += rows) {
+                progress.checkCancelled();
+                int h = Math.min(rows, area.height - y);
+                decoded.getRGB(0, y, area.width, h, pixels, 0, area.width);
+                for(int i = 0; i < h * area.width; i++) {
+                    pixels[i] &= 0xffffff;
+                }
+                image.writeRows(y, y + h, pixels, 0);
+                progress.advance(100L * (y + h) / area.height - 100L * y / area.height);
+            }
+        }
+    }
+
+    /**
+     * Read the width and height of an image from the header of its file,
+     * without decoding any pixels.
+     *
+     * @param imageFile  The image file.
+     * @return           The size of the image, or null if it could not be read.
+     */
+    public static Dimension readSize(File imageFile)
+    {
+        try(ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            ImageReader reader = readerFor(input);
+            if(reader == null) {
+                return null;
+            }
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally {
+                reader.dispose();
+            }
         }
         catch(IOException exc) {
-            return;
+            return null;
+        }
+    }
+
+    /**
+     * Decode the image, or a region of it, from an image stream, subsampled
+     * as in loadImage, telling a listener (if it is not null) about the
+     * part decoded so far.
+     * @return The image, or null if the region lies outside the image.
+     * @throws IOException if the stream is not an image in a known format,
+     *         or cannot be decoded.
+     */
+    private static OFImage read(ImageInputStream input, Rectangle region, int subsampling, Progress progress,
+                                UpdateListener listener)
+        throws IOException
+    {
+        ImageReader reader = readerFor(input);
+        if(reader == null) {
+            throw new IOException("not an image in a known format");
+        }
+        try {
+            Rectangle area = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+            if(region != null) {
+                area = area.intersection(region);
+                if(area.isEmpty()) {
+                    return null;
+                }
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(area);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            if(decodesToRGB(reader)) {
+                // decode straight into the image, instead of into one that is copied
+                param.setDestination(new OFImage((area.width + subsampling - 1) / subsampling,
+                                                 (area.height + subsampling - 1) / subsampling));
+            }
+            progress.start(100);
+            reader.addIIOReadProgressListener(new ReadProgress(progress));
+            if(listener != null) {
+                reader.addIIOReadUpdateListener(new ReadUpdates(listener, progress));
+            }
+            BufferedImage image = reader.read(0, param);
+            progress.checkCancelled();
+            return image instanceof OFImage ? (OFImage) image : new OFImage(image);
+        }
+        finally {
+            reader.dispose();
         }
     }
+
+    /**
+     * Told about the part of an image that has been decoded, while the rest
+     * of it is still being decoded.
+     */
+    public interface UpdateListener
+    {
+        /**
+         * Called on the thread that decodes the image, first as soon as any
+         * of it has been decoded, then again every so often and after every
+         * pass of a progressive image. The image keeps changing until
+         * loadImage returns; what has not been decoded yet is black.
+         *
+         * @param image  The image as decoded so far. It is the image that
+         *               loadImage returns if the decoder writes into it
+         *               directly, otherwise a copy kept up to date.
+         */
+        void imageUpdated(OFImage image);
+    }
+
+    /**
+     * Return a reader for an image stream, with the stream as its input, or
+     * null if the stream is missing or no reader knows its format.
+     */
+    private static ImageReader readerFor(ImageInputStream input)
+    {
+        if(input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if(!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * Return true if a reader can decode its image into a TYPE_INT_RGB image,
+     * the type of OFImage: if it is a JPG or PNG reader (readers for other
+     * formats, such as BMP, cannot write into packed pixels) and the image
+     * is red, green and blue without alpha.
+     */
+    private static boolean decodesToRGB(ImageReader reader) throws IOException
+    {
+        String format = reader.getFormatName().toLowerCase();
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if(!(format.equals("jpeg") || format.equals("png")) || !types.hasNext()) {
+            return false;
+        }
+        ColorModel model = types.next().getColorModel();
+        return model.getNumComponents() == 3 && !model.hasAlpha()
+            && !(model instanceof IndexColorModel) && model.getColorSpace().isCS_sRGB();
+    }
+
+    /**
+     * Passes on how far a reader has got to a Progress, and stops the reader
+     * when the progress is cancelled.
+     */
+    private static class ReadProgress implements IIOReadProgressListener
+    {
+        private final Progress progress;
+        // the percentage reported so far
+        private int reported;
+
+        ReadProgress(Progress progress)
+        {
+            this.progress = progress;
+        }
+
+        public void imageProgress(ImageReader source, float percentageDone)
+        {
+            int done = (int) percentageDone;
+            progress.advance(done - reported);
+            reported = done;
+            if(progress.isCancelled()) {
+                source.abort();
+            }
+        }
+
+        public void imageComplete(ImageReader source)
+        {
+            progress.advance(100 - reported);
+            reported = 100;
+        }
+
+        public void sequenceStarted(ImageReader source, int minIndex) {}
+        public void sequenceComplete(ImageReader source) {}
+        public void imageStarted(ImageReader source, int imageIndex) {}
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+        public void thumbnailProgress(ImageReader source, float percentageDone) {}
+        public void thumbnailComplete(ImageReader source) {}
+        public void readAborted(ImageReader source) {}
+    }
+
+    /**
+     * The banks of a DataBuffer of any layout, kept in a memory-mapped
+     * temporary file instead of on the heap. The file is mapped in chunks,
+     * since one mapping holds at most 2 GB.
+     */
+    private static class MappedBuffer extends DataBuffer implements AutoCloseable
+    {
+        // The bytes mapped by one chunk (a multiple of every element size).
+        private static final int CHUNK_SHIFT = 30;
+
+        private final int elementShift;
+        private final long bankSize;
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer[] chunks;
+
+        /**
+         * Create a buffer, all zero, large enough for a sample model.
+         */
+        MappedBuffer(SampleModel model) throws IOException
+        {
+            super(model.getDataType(), bankSize(model), model.createCompatibleSampleModel(1, 1)
+                                                                .createDataBuffer().getNumBanks());
+            int type = model.getDataType();
+            if(type != TYPE_BYTE && type != TYPE_USHORT && type != TYPE_SHORT && type != TYPE_INT) {
+                throw new IOException("unsupported sample type: " + type);
+            }
+            elementShift = Integer.numberOfTrailingZeros(getDataTypeSize(type) / 8);
+            bankSize = getSize();
+            file = File.createTempFile("imageviewer-", ".raw");
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            long bytes = (bankSize * getNumBanks()) << elementShift;
+            chunks = new ByteBuffer[(int) ((bytes + (1L << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+            try {
+                for(int chunk = 0; chunk < chunks.length; chunk++) {
+                    long start = (long) chunk << CHUNK_SHIFT;
+                    chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                                Math.min(1L << CHUNK_SHIFT, bytes - start))
+                                           .order(ByteOrder.nativeOrder());
+                }
+            }
+            catch(IOException exc) {
+                close();
+                throw exc;
+            }
+        }
+
+        /**
+         * Return the number of elements in a bank of a buffer for a sample
+         * model: the size of one row, plus the distance from row to row for
+         * every further row.
+         */
+        private static int bankSize(SampleModel model)
+        {
+            int oneRow = model.createCompatibleSampleModel(model.getWidth(), 1).createDataBuffer().getSize();
+            int twoRows = model.createCompatibleSampleModel(model.getWidth(), 2).createDataBuffer().getSize();
+            long size = oneRow + (long) (twoRows - oneRow) * (model.getHeight() - 1);
+            if(size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("unsupported image size: "
+                                                   + model.getWidth() + " x " + model.getHeight());
+            }
+            return (int) size;
+        }
+
+        public int getElem(int bank, int i)
+        {
+            long at = (bank * bankSize + i) << elementShift;
+            ByteBuffer chunk = chunks[(int) (at >>> CHUNK_SHIFT)];
+            int offset = (int) (at & ((1L << CHUNK_SHIFT) - 1));
+            switch(dataType) {
+                case TYPE_BYTE:   return chunk.get(offset) & 0xff;
+                case TYPE_USHORT: return chunk.getShort(offset) & 0xffff;
+                case TYPE_SHORT:  return chunk.getShort(offset);
+                default:          return chunk.getInt(offset);
+            }
+        }
+
+        public void setElem(int bank, int i, int value)
+        {
+            long at = (bank * bankSize + i) << elementShift;
+            ByteBuffer chunk = chunks[(int) (at >>> CHUNK_SHIFT)];
+            int offset = (int) (at & ((1L << CHUNK_SHIFT) - 1));
+            switch(dataType) {
+                case TYPE_BYTE:   chunk.put(offset, (byte) value); break;
+                case TYPE_USHORT:
+                case TYPE_SHORT:  chunk.putShort(offset, (short) value); break;
+                default:          chunk.putInt(offset, value); break;
+            }
+        }
+
+        /**
+         * Delete the file of this buffer. It must not be used afterwards.
+         */
+        public void close()
+        {
+            try {
+                channel.close();
+            }
+            catch(IOException exc) {
+                // nothing left to do with it: the file is deleted anyway
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Passes on the rows a reader has decoded to an UpdateListener, at most
+     * every UPDATE_INTERVAL except at the end of a pass. If the reader does
+     * not decode into an OFImage, the rows are copied into one. Since rows
+     * are reported more often than progress, the reader is also stopped
+     * here when the progress is cancelled.
+     */
+    private static class ReadUpdates implements IIOReadUpdateListener
+    {
+        private final UpdateListener listener;
+        private final Progress progress;
+        // the image shown to the listener, or null before the first rows
+        private OFImage image;
+        // when the listener was last called, in System.nanoTime
+        private long lastUpdate;
+
+        ReadUpdates(UpdateListener listener, Progress progress)
+        {
+            this.listener = listener;
+            this.progress = progress;
+        }
+
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+                                int width, int height, int periodX, int periodY, int[] bands)
+        {
+            if(progress.isCancelled()) {
+                source.abort();
+                return;
+            }
+            boolean first = image == null;
+            if(first) {
+                image = theImage instanceof OFImage ? (OFImage) theImage
+                                                    : new OFImage(theImage.getWidth(), theImage.getHeight());
+            }
+            if(image != theImage) {
+                int w = image.getWidth();
+                int[] pixels = image.getPixels();
+                for(int i = 0; i < height; i++) {
+                    int y = minY + i * periodY;
+                    theImage.getRGB(0, y, w, 1, pixels, y * w, w);
+                    for(int x = y * w; x < (y + 1) * w; x++) {
+                        pixels[x] &= 0xffffff;
+                    }
+                }
+            }
+            long now = System.nanoTime();
+            if(first || now - lastUpdate >= UPDATE_INTERVAL) {
+                update(now);
+            }
+        }
+
+        public void passComplete(ImageReader source, BufferedImage theImage)
+        {
+            if(image != null) {
+                update(System.nanoTime());
+            }
+        }
+
+        /**
+         * Call the listener.
+         */
+        private void update(long now)
+        {
+            listener.imageUpdated(image);
+            lastUpdate = now;
+        }
+
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {}
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY,
+                                         int[] bands) {}
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+                                    int width, int height, int periodX, int periodY, int[] bands) {}
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+    }
 }
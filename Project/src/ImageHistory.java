@@ -0,0 +1,577 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An ImageHistory records the versions of an image while it is edited, so
+ * that edits can be undone and redone.
+ * 
+ * For most versions the history only records the operation that produced
+ * it from the version before. Every so often it also keeps the pixels of
+ * a version, as a keyframe; any other version is rebuilt by replaying the
+ * operations from the nearest keyframe before it. How often keyframes are
+ * kept depends on how long the operations took: a version becomes a
+ * keyframe as soon as replaying up to it would take longer than
+ * MAX_REPLAY_NANOS, so an expensive operation is keyframed right away while
+ * a run of cheap ones shares a single keyframe.
+ * 
+ * Keyframes are stored as TiledImages that share all unchanged tiles with
+ * the keyframe before them. Undo and redo between two keyframes update the
+ * displayed image in place by copying just the tiles that differ.
+ * 
+ * The history keeps the memory its keyframes use within a byte budget.
+ * When the budget is exceeded, the tiles of the keyframes farthest from the
+ * current version are compressed first; if that is not enough, they are
+ * moved to a spill file on disk. Either way they are unpacked again when an
+ * undo or redo needs them. The tiles of the keyframe the current version is
+ * rebuilt from always stay as they are.
+ * 
+ * Tiles of versions that can no longer be redone stay in the spill file
+ * as garbage. Once there is more garbage than live data in it, the live
+ * tiles are copied to a new file and the old one is deleted, so the file
+ * never grows beyond about twice what it needs to hold.
+ * 
+ * Every version also records the orientation its pixels are shown in.
+ * Turning or flipping the image only changes that orientation, so such a
+ * version costs neither memory nor replay time.
+ * 
+ * @version 1.5
+ */
+public class ImageHistory
+{
+    /** The budget used unless another one is given: a quarter of the maximum heap size. */
+    public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    /** The longest time replaying operations from a keyframe may take, in nanoseconds. */
+    public static final long MAX_REPLAY_NANOS = 250_000_000L;
+    /** The largest number of operations replayed from a keyframe. */
+    public static final int MAX_REPLAY_STEPS = 20;
+
+    private final List<Version> versions;
+    // the index of the version that is currently shown
+    private int current;
+    private long budget;
+    private SpillFile spillFile;
+    private int compressions;
+    private int spills;
+
+    /**
+     * Create an empty history with the default budget.
+     */
+    public ImageHistory()
+    {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Create an empty history with a given budget.
+     * @param budget The number of bytes the history should keep in memory at most.
+     */
+    public ImageHistory(long budget)
+    {
+        versions = new ArrayList<>();
+        current = -1;
+        setBudget(budget);
+    }
+
+    /**
+     * Forget all versions and start a new history with a given image.
+     * @param image The first version of the image.
+     */
+    public void reset(OFImage image)
+    {
+        versions.clear();
+        versions.add(new Version(null, TiledImage.of(image, null), Orientation.IDENTITY, 0, 0));
+        current = 0;
+        if(spillFile != null) {
+            try {
+                spillFile.clear();
+            }
+            catch(IOException exc) {
+                spillFile = null; // start a new file when it is needed
+            }
+        }
+    }
+
+    /**
+     * Record a new version of the image that cannot be made by replaying
+     * an operation. It is always kept as a keyframe.
+     * @param image The new version of the image.
+     * @param orientation The orientation the new version is shown in.
+     */
+    public void push(OFImage image, Orientation orientation)
+    {
+        push(null, image, 0, orientation);
+    }
+
+    /**
+     * Record a new version of the image, made by applying an operation to
+     * the current version. Versions that were undone before can no longer
+     * be redone.
+     * @param operation The operation that made the new version, or null if
+     *                  it cannot be replayed.
+     * @param image The new version of the image.
+     * @param nanos How long the operation took, in nanoseconds.
+     * @param orientation The orientation the new version is shown in.
+     */
+    public void push(ImageOperation operation, OFImage image, long nanos, Orientation orientation)
+    {
+        Version previous = versions.get(current);
+        dropRedo();
+        long replayNanos = previous.replayNanos + nanos;
+        int replaySteps = previous.replaySteps + 1;
+        if(operation == null || replayNanos > MAX_REPLAY_NANOS || replaySteps > MAX_REPLAY_STEPS) {
+            TiledImage base = versions.get(keyframeBefore(current)).frame;
+            versions.add(new Version(operation, TiledImage.of(image, base), orientation, 0, 0));
+        }
+        else {
+            versions.add(new Version(operation, null, orientation, replayNanos, replaySteps));
+        }
+        current++;
+        enforceBudget();
+    }
+
+    /**
+     * Record a new version that shows the pixels of the current version in
+     * another orientation.
+     * @param orientation The orientation the new version is shown in.
+     */
+    public void push(Orientation orientation)
+    {
+        Version previous = versions.get(current);
+        dropRedo();
+        versions.add(new Version(null, null, orientation, previous.replayNanos, previous.replaySteps));
+        current++;
+    }
+
+    /**
+     * @return The orientation the current version is shown in.
+     */
+    public Orientation getOrientation()
+    {
+        return versions.get(current).orientation;
+    }
+
+    /**
+     * @return true if there is a version to go back to.
+     */
+    public boolean canUndo()
+    {
+        return current > 0;
+    }
+
+    /**
+     * @return true if there is an undone version to go forward to.
+     */
+    public boolean canRedo()
+    {
+        return current < versions.size() - 1;
+    }
+
+    /**
+     * Go back to the previous version.
+     * @param image The image that is shown now; it must hold the current
+     *              version. If it has the right size it is changed in place.
+     * @return The image holding the previous version (possibly the given one).
+     */
+    public OFImage undo(OFImage image)
+    {
+        return moveTo(current - 1, image);
+    }
+
+    /**
+     * Go forward to the version that was last undone.
+     * @param image The image that is shown now; it must hold the current
+     *              version. If it has the right size it is changed in place.
+     * @return The image holding the next version (possibly the given one).
+     */
+    public OFImage redo(OFImage image)
+    {
+        return moveTo(current + 1, image);
+    }
+
+    /**
+     * Return a new image holding an earlier version, in the orientation
+     * its pixels are stored in (see getOrientation).
+     * @param stepsBack How many versions to go back (0 for the current one).
+     * @return A new image with the pixels of that version, or null if there
+     *         is no such version.
+     */
+    public OFImage getVersion(int stepsBack)
+    {
+        int index = current - stepsBack;
+        if(index < 0 || index >= versions.size()) {
+            return null;
+        }
+        return rebuild(index);
+    }
+
+    /**
+     * Make a tiled copy of an image holding the current version. The copy
+     * shares all unchanged tiles with the keyframe the current version is
+     * rebuilt from, so it costs memory only for what changed since then.
+     * @param image The image holding the current version.
+     * @return The tiled copy.
+     */
+    public TiledImage snapshot(OFImage image)
+    {
+        return TiledImage.of(image, versions.get(keyframeBefore(current)).frame);
+    }
+
+    /**
+     * @return The number of bytes the history keeps in memory at most.
+     */
+    public long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Change the budget. If the history uses more memory than the new
+     * budget, older versions are compressed or spilled right away.
+     * @param budget The number of bytes the history should keep in memory at most.
+     */
+    public void setBudget(long budget)
+    {
+        if(budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+        }
+        this.budget = budget;
+        enforceBudget();
+    }
+
+    /**
+     * Return the number of bytes of pixel data held by all keyframes, as if
+     * none of them was compressed or spilled. Tiles that keyframes share are
+     * counted once.
+     * @return The size of the pixels in this history, in bytes.
+     */
+    public long getRetainedBytes()
+    {
+        long bytes = 0;
+        for(Tile tile : uniqueTiles()) {
+            bytes += tile.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of bytes this history takes up in memory, counting
+     * compressed tiles at their compressed size and spilled tiles not at all.
+     * @return The memory used by this history, in bytes.
+     */
+    public long getMemoryBytes()
+    {
+        long bytes = 0;
+        for(Tile tile : uniqueTiles()) {
+            bytes += tile.getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The number of versions in the history.
+     */
+    public int getVersionCount()
+    {
+        return versions.size();
+    }
+
+    /**
+     * @return The number of versions whose pixels are kept as keyframes.
+     */
+    public int getKeyframeCount()
+    {
+        int count = 0;
+        for(Version version : versions) {
+            if(version.frame != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of tiles that are currently kept compressed in memory.
+     */
+    public int getCompressedTiles()
+    {
+        int count = 0;
+        for(Tile tile : uniqueTiles()) {
+            if(tile.isCompressed()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of tiles that are currently spilled to disk.
+     */
+    public int getSpilledTiles()
+    {
+        int count = 0;
+        for(Tile tile : uniqueTiles()) {
+            if(tile.isSpilled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of times a tile has been compressed since the history was created.
+     */
+    public int getCompressions()
+    {
+        return compressions;
+    }
+
+    /**
+     * @return The number of times a tile has been spilled since the history was created.
+     */
+    public int getSpills()
+    {
+        return spills;
+    }
+
+    /**
+     * @return The size of the spill file, in bytes, including the tiles of
+     *         versions that are gone.
+     */
+    public long getSpillFileBytes()
+    {
+        return spillFile != null ? spillFile.getSize() : 0;
+    }
+
+    /**
+     * @return The number of bytes in the spill file that belong to tiles
+     *         still in the history.
+     */
+    public long getLiveSpillBytes()
+    {
+        if(spillFile == null) {
+            return 0;
+        }
+        long bytes = 0;
+        for(Tile tile : uniqueTiles()) {
+            bytes += tile.getSpilledBytes(spillFile);
+        }
+        return bytes;
+    }
+
+    /**
+     * Make another version the current one.
+     */
+    private OFImage moveTo(int index, OFImage image)
+    {
+        if(index < 0 || index >= versions.size()) {
+            throw new IllegalStateException("no such version: " + index);
+        }
+        Version target = versions.get(index);
+        Version shown = versions.get(current);
+        int from = current;
+        current = index;
+        if(image != null && index == from - 1 && shown.frame == null && shown.operation == null) {
+            return image; // only the orientation changes
+        }
+        if(target.frame != null) {
+            if(image != null && shown.frame != null && target.frame.restore(image, shown.frame)) {
+                return image;
+            }
+            return target.frame.toImage();
+        }
+        if(image != null && index == from + 1) {
+            return target.operation != null ? target.operation.apply(image) : image;
+        }
+        return rebuild(index);
+    }
+
+    /**
+     * Forget the versions after the current one.
+     */
+    private void dropRedo()
+    {
+        if(versions.size() > current + 1) {
+            while(versions.size() > current + 1) {
+                versions.remove(versions.size() - 1);
+            }
+            compactSpillFile();
+        }
+    }
+
+    /**
+     * If the spill file holds more garbage than live data, copy the live
+     * tiles to a new file and delete the old one.
+     */
+    private void compactSpillFile()
+    {
+        if(spillFile == null) {
+            return;
+        }
+        long live = getLiveSpillBytes();
+        if(spillFile.getSize() - live <= live) {
+            return;
+        }
+        SpillFile compacted = null;
+        try {
+            if(live > 0) {
+                compacted = new SpillFile();
+                for(Tile tile : uniqueTiles()) {
+                    tile.moveSpill(compacted);
+                }
+            }
+            spillFile.delete();
+            spillFile = compacted; // or null: a new file is made when it is needed
+        }
+        catch(IOException exc) {
+            // the disk cannot take a copy; tiles moved so far stay in the copy, the rest in the old file
+        }
+    }
+
+    /**
+     * Rebuild a version by replaying operations from the keyframe before it.
+     */
+    private OFImage rebuild(int index)
+    {
+        int keyframe = keyframeBefore(index);
+        OFImage image = versions.get(keyframe).frame.toImage();
+        for(int i = keyframe + 1; i <= index; i++) {
+            ImageOperation operation = versions.get(i).operation;
+            if(operation != null) {
+                OFImage next = operation.apply(image);
+                if(next != image) {
+                    image.release(); // only needed to make the next one
+                }
+                image = next;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Return the index of the nearest keyframe at or before a version.
+     */
+    private int keyframeBefore(int index)
+    {
+        while(versions.get(index).frame == null) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Return every tile of every version once, in the order of the versions.
+     */
+    private Set<Tile> uniqueTiles()
+    {
+        Set<Tile> tiles = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Version version : versions) {
+            if(version.frame != null) {
+                Collections.addAll(tiles, version.frame.getTiles());
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Compress, and if necessary spill, the tiles of the keyframes farthest
+     * from the current version until the memory used is within the budget.
+     */
+    private void enforceBudget()
+    {
+        long memory = getMemoryBytes();
+        if(memory <= budget) {
+            return;
+        }
+        List<Tile> candidates = candidateTiles();
+        for(Tile tile : candidates) {
+            if(memory <= budget) {
+                return;
+            }
+            long before = tile.getMemoryBytes();
+            if(tile.compress()) {
+                compressions++;
+                memory -= before - tile.getMemoryBytes();
+            }
+        }
+        try {
+            for(Tile tile : candidates) {
+                if(memory <= budget) {
+                    return;
+                }
+                long before = tile.getMemoryBytes();
+                if(spillFile == null) {
+                    spillFile = new SpillFile();
+                }
+                if(tile.spill(spillFile)) {
+                    spills++;
+                    memory -= before;
+                }
+            }
+        }
+        catch(IOException exc) {
+            // the disk cannot take any more; keep the rest in memory
+        }
+    }
+
+    /**
+     * Return the tiles that may be compressed or spilled: those not used by
+     * the keyframe the current version is rebuilt from, farthest keyframes
+     * first. (The tiles of that keyframe are entered into the set first so
+     * they are skipped.)
+     */
+    private List<Tile> candidateTiles()
+    {
+        Set<Tile> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        Collections.addAll(candidates, versions.get(keyframeBefore(current)).frame.getTiles());
+        List<Tile> ordered = new ArrayList<>();
+        int distance = Math.max(current, versions.size() - 1 - current);
+        for(; distance > 0; distance--) {
+            for(int index : new int[] {current - distance, current + distance}) {
+                if(index < 0 || index >= versions.size()) {
+                    continue;
+                }
+                TiledImage frame = versions.get(index).frame;
+                if(frame == null) {
+                    continue;
+                }
+                for(Tile tile : frame.getTiles()) {
+                    if(candidates.add(tile)) {
+                        ordered.add(tile);
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * One version of the image in the history.
+     */
+    private static class Version
+    {
+        // how this version was made from the one before, or null
+        // (which, without a frame, means the pixels did not change)
+        private final ImageOperation operation;
+        // the pixels of this version, if it is a keyframe
+        private final TiledImage frame;
+        // how the pixels of this version are shown
+        private final Orientation orientation;
+        // the time and number of operations needed to replay this version from its keyframe
+        private final long replayNanos;
+        private final int replaySteps;
+
+        private Version(ImageOperation operation, TiledImage frame, Orientation orientation,
+                        long replayNanos, int replaySteps)
+        {
+            this.operation = operation;
+            this.frame = frame;
+            this.orientation = orientation;
+            this.replayNanos = replayNanos;
+            this.replaySteps = replaySteps;
+        }
+    }
+}
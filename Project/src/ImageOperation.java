@@ -0,0 +1,103 @@
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * An ImageOperation is one step of editing an image: applying a filter,
+ * resizing, rotating and so on. Operations are deterministic - the same
+ * operation applied to the same image always gives the same result - so
+ * that an ImageHistory can record them instead of the images they produce
+ * and replay them when an earlier version is needed again.
+ * 
+ * While an operation runs it can report how far it has got to a Progress,
+ * and stop early if the Progress is cancelled.
+ * 
+ * @version 1.1
+ */
+public abstract class ImageOperation
+{
+    private String name;
+
+    /**
+     * Create a new operation with a given name.
+     * @param name The name of the operation.
+     */
+    public ImageOperation(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Return the name of this operation.
+     * 
+     * @return  The name of this operation.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Apply this operation to an image.
+     * 
+     * @param  image  The image to work on; it is not changed.
+     * @return  A new image holding the result.
+     */
+    public OFImage apply(OFImage image)
+    {
+        return apply(image, new Progress());
+    }
+
+    /**
+     * Apply this operation to an image, reporting to a Progress.
+     * 
+     * @param  image  The image to work on; it is not changed.
+     * @param  progress  The progress to report to and check for cancellation.
+     * @return  A new image holding the result.
+     * @throws  java.util.concurrent.CancellationException  if the progress is cancelled.
+     */
+    public abstract OFImage apply(OFImage image, Progress progress);
+
+    /**
+     * Create an operation from a function. The operation does not report
+     * progress, and can only be cancelled before it starts.
+     * @param name The name of the operation.
+     * @param function A function that returns a new image made from the
+     *                 image it is given, without changing that image.
+     * @return The operation.
+     */
+    public static ImageOperation of(String name, UnaryOperator<OFImage> function)
+    {
+        return of(name, (image, progress) -> {
+            progress.checkCancelled();
+            return function.apply(image);
+        });
+    }
+
+    /**
+     * Create an operation from a function that reports to a Progress.
+     * @param name The name of the operation.
+     * @param function A function that returns a new image made from the
+     *                 image it is given, without changing that image.
+     * @return The operation.
+     */
+    public static ImageOperation of(String name, BiFunction<OFImage, Progress, OFImage> function)
+    {
+        return new ImageOperation(name) {
+            public OFImage apply(OFImage image, Progress progress)
+            {
+                return function.apply(image, progress);
+            }
+        };
+    }
+
+    /**
+     * Create an operation that applies a filter.
+     * @param filter The filter to apply.
+     * @param engine The engine that runs the filter.
+     * @return The operation.
+     */
+    public static ImageOperation forFilter(Filter filter, FilterEngine engine)
+    {
+        return of(filter.getName(), (image, progress) -> engine.filtered(filter, image, progress));
+    }
+}
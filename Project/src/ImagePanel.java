@@ -1,8 +1,23 @@
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.JComponent;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 /**
  * An ImagePanel is a Swing component that can display an OFImage.
@@ -10,18 +25,87 @@ import javax.swing.JComponent;
  * of setting an OFImage that will be displayed on the surface of this
  * component.
  * 
+ * While a new image is being computed, a smaller preview of it can be shown
+ * instead, stretched to the size of the image.
+ * 
+ * The image is drawn in an orientation: turning or flipping the image only
+ * changes how it is painted, not its pixels. In the same way it is drawn at
+ * a zoom factor, a power of two. Only the tiles of the image that are inside
+ * the area to be painted are drawn. When zoomed in, the tiles are simply
+ * drawn larger; when zoomed out, every tile is averaged down once and kept
+ * in a cache of the most recently drawn tiles.
+ * 
+ * Zoomed-out tiles are averaged on a background thread, so that painting
+ * never waits for them: until a tile is ready, a quick sample of every
+ * factor-th pixel is drawn in its place. Painting therefore costs about
+ * the same whatever the size of the image. Tiles that have been scrolled
+ * out of view before their turn comes are skipped.
+ * 
+ * A MappedImage, too large for the heap, can be shown as well. All its
+ * tiles, zoomed out or not, are read from its file on the background
+ * thread and cached; until a tile is ready its place stays empty.
+ * 
+ * The panel is meant to be shown in a JScrollPane, which it asks for no
+ * more than most of the screen.
+ * 
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 1.5
  */
-public class ImagePanel extends JComponent
+public class ImagePanel extends JComponent implements Scrollable
 {
-    // The current width and height of this panel
+    /** The smallest zoom factor. */
+    public static final double MIN_ZOOM = 1.0 / 32;
+    /** The largest zoom factor. */
+    public static final double MAX_ZOOM = 32;
+
+    // The width and height of a tile, in pixels of the image as it is drawn
+    // before zooming in (or after zooming out).
+    private static final int TILE_SIZE = 256;
+    // The number of bytes of zoomed-out tiles that are kept.
+    private static final long CACHE_BYTES = 64L << 20;
+    // The share of the screen a scroll pane shows of the panel at most, in percent.
+    private static final int MAX_VIEWPORT_PERCENT = 75;
+    // How far the arrows of a scroll pane scroll, in pixels.
+    private static final int SCROLL_UNIT = 16;
+
+    // The current width and height of this panel, before zooming
     private int width, height;
 
     // An internal image buffer that is used for painting. For
     // actual display, this image buffer is then copied to screen.
     private OFImage panelImage;
 
+    // An image too large for the heap, shown instead of panelImage, or null.
+    private MappedImage mappedImage;
+
+    // The orientation panelImage is drawn in.
+    private Orientation orientation;
+
+    // A preview drawn in place of panelImage, or null, and its orientation.
+    private OFImage previewImage;
+    private Orientation previewOrientation;
+
+    // How many times larger than the image the panel shows it.
+    private double zoom;
+
+    // Zoomed-out tiles of panelImage (and all tiles of mappedImage), the
+    // least recently drawn first, and the number of bytes they hold.
+    private final LinkedHashMap<Long, OFImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long tileBytes;
+
+    // The thread that averages zoomed-out tiles, the tiles it has been asked
+    // for, and the tiles in view as {factor, first x, first y, last x, last y}.
+    // The generation counts the changes of the image, so that tiles of an
+    // earlier image are dropped.
+    private final ExecutorService tileWorker = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "ImagePanel tiles");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Long> requestedTiles = ConcurrentHashMap.newKeySet();
+    private volatile int[] tilesInView = new int[5];
+    private volatile int generation;
+
     /**
      * Create a new, empty ImagePanel.
      */
@@ -30,6 +114,8 @@ public class ImagePanel extends JComponent
         width = 360;    // arbitrary size for empty panel
         height = 240;
         panelImage = null;
+        orientation = Orientation.IDENTITY;
+        zoom = 1;
     }
 
     /**
@@ -38,23 +124,103 @@ public class ImagePanel extends JComponent
      * @param image  The image to be displayed.
      */
     public void setImage(OFImage image)
+    {
+        setImage(image, Orientation.IDENTITY);
+    }
+
+    /**
+     * Set the image that this panel should show, and the orientation to
+     * show it in.
+     * 
+     * @param image  The image to be displayed.
+     * @param orientation  How the image is turned or flipped on screen.
+     */
+    public void setImage(OFImage image, Orientation orientation)
     {
         if(image != null) {
-            width = image.getWidth();
-            height = image.getHeight();
+            width = orientation.getWidth(image.getWidth(), image.getHeight());
+            height = orientation.getHeight(image.getWidth(), image.getHeight());
             panelImage = image;
+            mappedImage = null;
+            this.orientation = orientation;
+            previewImage = null;
+            clearTiles(); // the image may have been changed in place
+            revalidate();
             repaint();
         }
     }
+
+    /**
+     * Set an image too large for the heap that this panel should show, and
+     * the orientation to show it in.
+     * 
+     * @param image  The image to be displayed.
+     * @param orientation  How the image is turned or flipped on screen.
+     */
+    public void setImage(MappedImage image, Orientation orientation)
+    {
+        width = orientation.getWidth(image.getWidth(), image.getHeight());
+        height = orientation.getHeight(image.getWidth(), image.getHeight());
+        panelImage = null;
+        mappedImage = image;
+        this.orientation = orientation;
+        previewImage = null;
+        clearTiles();
+        revalidate();
+        repaint();
+    }
+    
+    /**
+     * Show a preview in place of the image, stretched to the size of the
+     * image, until the next call of setImage.
+     * 
+     * @param preview  The preview to be displayed.
+     * @param orientation  How the preview is turned or flipped on screen.
+     */
+    public void setPreview(OFImage preview, Orientation orientation)
+    {
+        previewImage = preview;
+        previewOrientation = orientation;
+        repaint();
+    }
+    
+    /**
+     * Set how many times larger than the image the panel shows it. The
+     * factor is rounded to a power of two between MIN_ZOOM and MAX_ZOOM.
+     * 
+     * @param zoom  The new zoom factor.
+     */
+    public void setZoom(double zoom)
+    {
+        double power = Math.pow(2, Math.round(Math.log(zoom) / Math.log(2)));
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, power));
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * @return How many times larger than the image the panel shows it.
+     */
+    public double getZoom()
+    {
+        return zoom;
+    }
     
     /**
      * Clear the image on this panel.
      */
     public void clearImage()
     {
+        if(panelImage == null) {
+            mappedImage = null;
+            clearTiles();
+            repaint();
+            return;
+        }
         Graphics imageGraphics = panelImage.getGraphics();
         imageGraphics.setColor(Color.LIGHT_GRAY);
-        imageGraphics.fillRect(0, 0, width, height);
+        imageGraphics.fillRect(0, 0, panelImage.getWidth(), panelImage.getHeight());
+        clearTiles();
         repaint();
     }
     
@@ -70,9 +236,60 @@ public class ImagePanel extends JComponent
      */
     public Dimension getPreferredSize()
     {
-        return new Dimension(width, height);
+        if(zoom >= 1) {
+            return new Dimension((int) (width * zoom), (int) (height * zoom));
+        }
+        int factor = zoomOutFactor();
+        return new Dimension((width + factor - 1) / factor, (height + factor - 1) / factor);
     }
     
+    /**
+     * Tell a scroll pane how much of this panel it should show: all of it,
+     * but no more than most of the screen.
+     * 
+     * @return The preferred size of the scroll pane's view.
+     */
+    public Dimension getPreferredScrollableViewportSize()
+    {
+        Dimension size = getPreferredSize();
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        return new Dimension(Math.min(size.width, screen.width * MAX_VIEWPORT_PERCENT / 100),
+                             Math.min(size.height, screen.height * MAX_VIEWPORT_PERCENT / 100));
+    }
+
+    /**
+     * @return How far the arrows of a scroll pane scroll.
+     */
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        return SCROLL_UNIT;
+    }
+
+    /**
+     * @return How far a scroll pane scrolls by the page: all of the view but a little.
+     */
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        int page = orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+        return Math.max(page - SCROLL_UNIT, SCROLL_UNIT);
+    }
+
+    /**
+     * @return false, since the panel keeps its size whatever the width of the view.
+     */
+    public boolean getScrollableTracksViewportWidth()
+    {
+        return false;
+    }
+
+    /**
+     * @return false, since the panel keeps its size whatever the height of the view.
+     */
+    public boolean getScrollableTracksViewportHeight()
+    {
+        return false;
+    }
+
     /**
      * This component needs to be redisplayed. Copy the internal image 
      * to screen. (This method gets called by the Swing screen painter 
@@ -82,10 +299,176 @@ public class ImagePanel extends JComponent
      */
     public void paintComponent(Graphics g)
     {
-        Dimension size = getSize();
-        g.clearRect(0, 0, size.width, size.height);
-        if(panelImage != null) {
-            g.drawImage(panelImage, 0, 0, null);
+        Rectangle clip = g.getClipBounds();
+        if(clip == null) {
+            clip = new Rectangle(getSize());
+        }
+        g.clearRect(clip.x, clip.y, clip.width, clip.height);
+        if(previewImage != null) {
+            // the preview stands for an image of the panel's size in its orientation
+            int w = previewOrientation.getWidth(width, height);
+            int h = previewOrientation.getHeight(width, height);
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.scale(zoom, zoom);
+            g2.transform(previewOrientation.toTransform(w, h));
+            g2.drawImage(previewImage, 0, 0, w, h, null);
+            g2.dispose();
+        }
+        else if(panelImage != null || mappedImage != null) {
+            paintTiles((Graphics2D) g.create());
+        }
+    }
+
+    /**
+     * Draw the tiles of the image that are inside the clip of a graphics
+     * context, and dispose of it.
+     */
+    private void paintTiles(Graphics2D g2)
+    {
+        // the image as it is tiled: the image itself, or averaged down when zoomed out
+        int factor = zoomOutFactor();
+        int imageWidth = panelImage != null ? panelImage.getWidth() : mappedImage.getWidth();
+        int imageHeight = panelImage != null ? panelImage.getHeight() : mappedImage.getHeight();
+        int tiledWidth = (imageWidth + factor - 1) / factor;
+        int tiledHeight = (imageHeight + factor - 1) / factor;
+        AffineTransform view = AffineTransform.getScaleInstance(Math.max(zoom, 1), Math.max(zoom, 1));
+        view.concatenate(orientation.toTransform(tiledWidth, tiledHeight));
+        g2.transform(view);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        Rectangle bounds = new Rectangle(tiledWidth, tiledHeight);
+        boolean cached = factor > 1 || mappedImage != null;
+        if(cached) {
+            tilesInView = tileRange(factor, toTiled(view, getVisibleRect()).intersection(bounds));
+        }
+
+        // the clip, now in the coordinates of the tiled image
+        int[] range = tileRange(factor, g2.getClipBounds().intersection(bounds));
+        for(int tileY = range[2]; tileY <= range[4]; tileY++) {
+            for(int tileX = range[1]; tileX <= range[3]; tileX++) {
+                int x = tileX * TILE_SIZE;
+                int y = tileY * TILE_SIZE;
+                OFImage tile = cached ? cachedTile(factor, tileX, tileY) : null;
+                if(tile != null) {
+                    g2.drawImage(tile, x, y, null);
+                }
+                else if(panelImage != null) {
+                    // the tile itself, or a sample of it until it is averaged
+                    int toX = Math.min(x + TILE_SIZE, tiledWidth);
+                    int toY = Math.min(y + TILE_SIZE, tiledHeight);
+                    g2.drawImage(panelImage, x, y, toX, toY,
+                                 x * factor, y * factor,
+                                 Math.min(toX * factor, imageWidth),
+                                 Math.min(toY * factor, imageHeight), null);
+                }
+            }
+        }
+        g2.dispose();
+    }
+
+    /**
+     * Return the tiles a rectangle of the tiled image touches, as
+     * {factor, first x, first y, last x, last y} (none if it is empty).
+     */
+    private static int[] tileRange(int factor, Rectangle area)
+    {
+        if(area.isEmpty()) {
+            return new int[] {factor, 0, 0, -1, -1};
         }
+        return new int[] {factor, area.x / TILE_SIZE, area.y / TILE_SIZE,
+                          (area.x + area.width - 1) / TILE_SIZE, (area.y + area.height - 1) / TILE_SIZE};
+    }
+
+    /**
+     * Map a rectangle of this panel to the tiled image.
+     */
+    private static Rectangle toTiled(AffineTransform view, Rectangle area)
+    {
+        try {
+            return view.createInverse().createTransformedShape(area).getBounds();
+        }
+        catch(NoninvertibleTransformException exc) {
+            return new Rectangle(); // cannot happen: turning and zooming can always be undone
+        }
+    }
+
+    /**
+     * Return a tile of the image averaged down by a factor (or, for a
+     * MappedImage, copied out of it) if it is in the cache. Otherwise ask
+     * the tile thread for it and return null; the panel is repainted when
+     * it is ready.
+     */
+    private OFImage cachedTile(int factor, int tileX, int tileY)
+    {
+        long key = ((long) factor << 48) | ((long) tileY << 24) | tileX;
+        OFImage tile = tiles.get(key);
+        if(tile == null && requestedTiles.add(key)) {
+            OFImage image = panelImage;
+            MappedImage mapped = mappedImage;
+            int requestedGeneration = generation;
+            tileWorker.execute(() -> {
+                int[] view = tilesInView;
+                if(requestedGeneration != generation || view[0] != factor
+                   || tileX < view[1] || tileY < view[2] || tileX > view[3] || tileY > view[4]) {
+                    requestedTiles.remove(key); // no longer in view; asked for again if it comes back
+                    return;
+                }
+                int size = TILE_SIZE * factor;
+                int x = tileX * size;
+                int y = tileY * size;
+                OFImage averaged;
+                if(image != null) {
+                    averaged = image.scaledDown(x, y, Math.min(size, image.getWidth() - x),
+                                                Math.min(size, image.getHeight() - y), factor);
+                }
+                else {
+                    averaged = mapped.scaledDown(x, y, Math.min(size, mapped.getWidth() - x),
+                                                 Math.min(size, mapped.getHeight() - y), factor);
+                }
+                SwingUtilities.invokeLater(() -> tileReady(requestedGeneration, key, averaged));
+            });
+        }
+        return tile;
+    }
+
+    /**
+     * Put a tile the tile thread has averaged into the cache and show it,
+     * unless the image has changed since it was asked for.
+     */
+    private void tileReady(int requestedGeneration, long key, OFImage tile)
+    {
+        if(requestedGeneration != generation) {
+            return;
+        }
+        requestedTiles.remove(key);
+        tiles.put(key, tile);
+        tileBytes += 4L * tile.getWidth() * tile.getHeight();
+        Iterator<OFImage> eldest = tiles.values().iterator();
+        while(tileBytes > CACHE_BYTES && tiles.size() > 1) {
+            OFImage evicted = eldest.next();
+            tileBytes -= 4L * evicted.getWidth() * evicted.getHeight();
+            eldest.remove();
+        }
+        repaint();
+    }
+
+    /**
+     * Forget all cached tiles, and those still being made.
+     */
+    private void clearTiles()
+    {
+        generation++;
+        tiles.clear();
+        tileBytes = 0;
+        requestedTiles.clear();
+    }
+
+    /**
+     * @return How many times smaller than the image the panel shows it (1
+     *         when it is not zoomed out).
+     */
+    private int zoomOutFactor()
+    {
+        return zoom < 1 ? (int) Math.round(1 / zoom) : 1;
     }
 }
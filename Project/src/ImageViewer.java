@@ -6,13 +6,21 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.GridLayout;
 import java.awt.Menu;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -25,8 +33,15 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
 import javax.swing.KeyStroke;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.EtchedBorder;
 
@@ -43,41 +58,58 @@ public class ImageViewer {
 	// static fields:
 	private static final String VERSION = "Version 3.1";
 	private static JFileChooser fileChooser = new JFileChooser(System.getProperty("user.dir"));
+	private static final int MAX_QUEUED_ACTIONS = 8;
+	private static final int MIN_RESIZE_PERCENT = 1;
+	private static final int MAX_RESIZE_PERCENT = 800;
+	// Images that would take more than this share (1/n) of the heap are kept in a file.
+	private static final int LARGE_IMAGE_SHARE = 4;
 
 	// fields:
 	private JFrame frame;
 	private ImagePanel imagePanel;
 	private JLabel filenameLabel;
 	private JLabel statusLabel;
-	private JButton smallerButton;
-	private JButton largerButton;
+	private JButton zoomOutButton;
+	private JButton zoomInButton;
 	private JButton undoButton;
 	private JButton reloadButton;
 	private JButton redoButton;
 	private OFImage currentImage;
+	private Orientation orientation = Orientation.IDENTITY; // how currentImage is shown; turning and flipping only change this
 	private OFImage reloadImage;
-	private OFImage leftImage;
-	List<OFImage> smallerArrayList = new ArrayList<>();
-	List<OFImage> undoArrayList = new ArrayList<>();
+	private File previewFile; // while currentImage is only a preview of a large file: the file, loaded in full when needed
+	private Rectangle previewRegion; // the part of it that was opened, or null for all
+	private int previewSubsampling; // how many times smaller than the file the preview is
+	private boolean previewLarge; // true if the full image is too large for the heap
+	private MappedImage largeImage; // the image, in place of currentImage, if it is too large for the heap
+	private ImageHistory history = new ImageHistory(Long.getLong("imageviewer.historyBudget", ImageHistory.DEFAULT_BUDGET)); // every version of the image since it was opened, for undo and redo
 	private List<Filter> filters;
-	List<OFImage> redoArrayList = new ArrayList<>();
-	List<OFImage> rotateArrayList = new ArrayList<>();
-	List<OFImage> leftArrayList = new ArrayList<>();
-	int rotated = 4;
+	private FilterEngine filterEngine = new FilterEngine();
+	private TransformEngine transformEngine = new TransformEngine(filterEngine.getPool());
+	private Resampler resampler = new Resampler(filterEngine.getPool());
+	private Resampler.Kernel resampling = Resampler.Kernel.BICUBIC; // how Resize weights the pixels
+	private int jpegQuality = 75; // the quality JPG files were last saved with, in percent
+	private int pngCompressionLevel = 4; // the compression level PNG files were last saved with
+	private List<Filter> appliedFilters = new ArrayList<>(); // filters applied since opening, for saving as a chain
 
 	private JMenu menuFilter;
+	private JMenu menuChains;
 	private JMenu menuEdit;
-	int rotatedLeft = 4;
+	private JMenu menuView;
 	private JButton rightButton;
 	private JButton leftButton;
 	private Component option;
+	private JButton cancelButton;
+	private BackgroundWork<?> runningOperation; // the operation running in the background, or null
+	private Deque<Runnable> queuedActions = new ArrayDeque<>(); // what to do when it is done, in order
+	private Timer progressTimer = new Timer(200, e -> showProgress());
 
 	/**
 	 * Create an ImageViewer and display its GUI on screen.
 	 */
 	public ImageViewer() {
 		currentImage = null;
-		filters = createFilters();
+		filters = Filter.createAll();
 		makeFrame();
 	}
 
@@ -93,35 +125,237 @@ public class ImageViewer {
 		if (returnVal != JFileChooser.APPROVE_OPTION) {
 			return; // cancelled
 		}
-		File selectedFile = fileChooser.getSelectedFile();
-		currentImage = ImageFileManager.loadImage(selectedFile);
-		reloadImage = currentImage;
+		open(fileChooser.getSelectedFile(), null);
+	}
+
+	/**
+	 * Open Region function: select an image file and a part of it, and then
+	 * display only that part. The rest of the file is never decoded, so this
+	 * opens crops of images too large to open whole.
+	 */
+	private void openRegion() {
+		int returnVal = fileChooser.showOpenDialog(frame);
 
-		if (currentImage == null) { // image file was not a valid image
+		if (returnVal != JFileChooser.APPROVE_OPTION) {
+			return; // cancelled
+		}
+		File selectedFile = fileChooser.getSelectedFile();
+		Dimension size = ImageFileManager.readSize(selectedFile); // only the header is read
+		if (size == null) {
 			JOptionPane.showMessageDialog(frame, "The file was not in a recognized image file format.",
 					"Image Load Error", JOptionPane.ERROR_MESSAGE);
 			return;
 		}
+		JSpinner xSpinner = new JSpinner(new SpinnerNumberModel(0, 0, size.width - 1, 1));
+		JSpinner ySpinner = new JSpinner(new SpinnerNumberModel(0, 0, size.height - 1, 1));
+		JSpinner widthSpinner = new JSpinner(new SpinnerNumberModel(size.width, 1, size.width, 1));
+		JSpinner heightSpinner = new JSpinner(new SpinnerNumberModel(size.height, 1, size.height, 1));
+		JPanel panel = new JPanel(new GridLayout(4, 2, 5, 5));
+		panel.add(new JLabel("Left:"));
+		panel.add(xSpinner);
+		panel.add(new JLabel("Top:"));
+		panel.add(ySpinner);
+		panel.add(new JLabel("Width:"));
+		panel.add(widthSpinner);
+		panel.add(new JLabel("Height:"));
+		panel.add(heightSpinner);
+
+		int result = JOptionPane.showConfirmDialog(frame, panel,
+				"Open Region (image is " + size.width + " x " + size.height + ")", JOptionPane.OK_CANCEL_OPTION);
+		if (result != JOptionPane.OK_OPTION) {
+			return; // cancelled
+		}
+		open(selectedFile, new Rectangle((Integer) xSpinner.getValue(), (Integer) ySpinner.getValue(),
+				(Integer) widthSpinner.getValue(), (Integer) heightSpinner.getValue()));
+	}
+
+	/**
+	 * Open an image file, or a part of it, and display it. If it is larger
+	 * than the screen, only a preview subsampled to about screen size is
+	 * decoded, which takes time and memory in proportion to the preview; the
+	 * full image is loaded when something needs its pixels (see promoteFirst).
+	 * Images too large for the heap are loaded into a MappedImage then.
+	 * 
+	 * The image is decoded in the background, and shown as far as it has
+	 * been decoded while that goes on (see LoadWorker); it only becomes the
+	 * current image once it has been decoded in full.
+	 * 
+	 * @param file
+	 *            The image file.
+	 * @param region
+	 *            The part of the image to open, or null for all of it.
+	 */
+	private void open(File file, Rectangle region) {
+		cancelOperations(); // whatever is still running was meant for the old image
+		Dimension size = ImageFileManager.readSize(file); // only the header is read
+		if (size == null) { // image file was not a valid image
+			showLoadError();
+			return;
+		}
+		Rectangle area = new Rectangle(size);
+		if (region != null) {
+			area = area.intersection(region);
+		}
+		Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+		int subsampling = Math.max((area.width + screen.width - 1) / screen.width,
+				(area.height + screen.height - 1) / screen.height);
+		boolean large = 4L * area.width * area.height > Runtime.getRuntime().maxMemory() / LARGE_IMAGE_SHARE;
+		if (large) {
+			subsampling = Math.max(subsampling, 2); // never the whole image on the heap
+		}
+		if (subsampling > 1) {
+			subsampling = Integer.highestOneBit(subsampling - 1) << 1; // a zoom step, so the view can stay put
+		}
+		start(new LoadWorker(file, region, subsampling, large));
+	}
+
+	/**
+	 * Called while an image is being opened: show the part of it that has
+	 * been decoded so far in place of the current image.
+	 * 
+	 * @param worker
+	 *            The worker that opens the image.
+	 * @param image
+	 *            The image as decoded so far.
+	 */
+	private void showPartialImage(LoadWorker worker, OFImage image) {
+		imagePanel.setImage(image, Orientation.IDENTITY); // drops the tiles of the last update
+		if (!worker.shown) {
+			worker.shown = true;
+			frame.pack();
+		}
+	}
+
+	/**
+	 * Called when opening an image has finished, failed or been cancelled:
+	 * make the image the current one, or show the current one again, then
+	 * start whatever was queued.
+	 * 
+	 * @param worker
+	 *            The worker that opened the image.
+	 */
+	private void loadDone(LoadWorker worker) {
+		if (!finish(worker)) {
+			return; // cancelled earlier, and already dealt with
+		}
+		OFImage image = null;
+		boolean cancelled = worker.isCancelled();
+		if (!cancelled) {
+			try {
+				image = worker.get();
+			} catch (InterruptedException | ExecutionException exc) {
+				cancelled = exc.getCause() instanceof CancellationException;
+			}
+		}
+		if (image == null) {
+			queuedActions.clear(); // they all need the image that could not be loaded
+			if (largeImage != null) { // drop what was shown of the new image
+				imagePanel.setImage(largeImage, orientation);
+			} else if (currentImage != null) {
+				imagePanel.setImage(currentImage, orientation);
+			} else {
+				imagePanel.clearImage();
+			}
+			if (cancelled) {
+				showStatus("Cancelled: " + worker.getName());
+			} else {
+				showLoadError();
+			}
+			return;
+		}
 
-		imagePanel.setImage(currentImage);
+		closeLargeImage();
+		currentImage = image;
+		reloadImage = currentImage;
+		previewFile = worker.subsampling > 1 ? worker.file : null;
+		previewRegion = worker.region;
+		previewSubsampling = worker.subsampling;
+		previewLarge = worker.large;
+		orientation = Orientation.IDENTITY;
+		imagePanel.setImage(currentImage, orientation);
 		setButtonsEnabled(true); // after opening a picture, this methods enable everything
 		setMenusEnabled(true); // that has been disabled before that.
 		setUndoButton(false);
 		setRedoButton(false);
-		showFilename(selectedFile.getPath());
-		showStatus("File loaded.");
+		showFilename(worker.file.getPath());
+		showStatus(previewFile != null ? "Preview loaded at 1/" + worker.subsampling + " size." : "File loaded.");
 		frame.pack();
 
-		undoArrayList.add(currentImage); // we put every change in arrayList and access it fairly easy.
+		history.reset(currentImage); // we record every change in the history and access it fairly easy.
+		appliedFilters.clear();
+		runQueued();
 	}
 
+	/**
+	 * Tell the user that a file could not be opened.
+	 */
+	private void showLoadError() {
+		JOptionPane.showMessageDialog(frame, "The file was not in a recognized image file format.",
+				"Image Load Error", JOptionPane.ERROR_MESSAGE);
+	}
+
+	/**
+	 * If the current image is only a preview, start loading the full image
+	 * and queue an action to be done once it is there.
+	 * 
+	 * @param name
+	 *            The name of the action, for the status bar.
+	 * @param action
+	 *            The action that needs the full image.
+	 * @return true if the action was queued, false if the full image is
+	 *         already there and it should be done now.
+	 */
+	private boolean promoteFirst(String name, Runnable action) {
+		if (previewFile == null) {
+			return false;
+		}
+		if (!queueIfBusy(name, action)) {
+			File file = previewFile;
+			Rectangle region = previewRegion;
+			int subsampling = previewSubsampling;
+			if (previewLarge) {
+				start(new LargeImageWorker("Loading full image", progress -> {
+					MappedImage full = ImageFileManager.loadLargeImage(file, region, progress);
+					if (full == null) {
+						throw new IOException(file + " could not be read");
+					}
+					return full;
+				}, () -> {
+					previewFile = null;
+					currentImage = null; // the preview is no use any more
+					reloadImage = null;
+					imagePanel.setZoom(imagePanel.getZoom() / subsampling);
+					showStatus("Full image loaded. It is too large for memory, so undo, turning and resizing are not available.");
+				}));
+				queuedActions.add(action);
+				return true;
+			}
+			start(new OperationWorker(ImageOperation.of("Loading full image", (image, progress) -> {
+				OFImage full = ImageFileManager.loadImage(file, region, 1, progress);
+				if (full == null) {
+					throw new IllegalStateException(file + " could not be read");
+				}
+				return full;
+			}), () -> {
+				previewFile = null;
+				imagePanel.setZoom(imagePanel.getZoom() / subsampling); // shown as large as the preview was
+				showStatus("Full image loaded.");
+			}, currentImage, null, 1, Orientation.IDENTITY, Orientation.IDENTITY, true));
+			queuedActions.add(action);
+		}
+		return true;
+	}
 
 	/**
 	 * Close function: close the current image.
 	 */
 
 	private void close() {
+		cancelOperations();
 		currentImage = null;
+		previewFile = null;
+		closeLargeImage();
+		orientation = Orientation.IDENTITY;
 		imagePanel.clearImage();
 		showFilename(null);
 		setButtonsEnabled(false);
@@ -133,16 +367,129 @@ public class ImageViewer {
 	 * Save As function: save the current image to a file.
 	 */
 	private void saveAs() {
-		if (currentImage != null) {
+		if (currentImage != null || largeImage != null) {
 			int returnVal = fileChooser.showSaveDialog(frame);
 
 			if (returnVal != JFileChooser.APPROVE_OPTION) {
 				return; // cancelled
 			}
 			File selectedFile = fileChooser.getSelectedFile();
-			ImageFileManager.saveImage(currentImage, selectedFile);
+			ImageEncoder encoder = askEncoder(selectedFile);
+			if (encoder == null) {
+				return; // cancelled
+			}
+			if (promoteFirst("Save", () -> save(selectedFile, encoder))) {
+				return; // a preview is not saved in place of the image
+			}
+			save(selectedFile, encoder);
+		}
+	}
+
+	/**
+	 * Ask for the quality (for a JPG file) or the compression level (for a
+	 * PNG file) to save a file with. The answer is kept for the next save.
+	 * 
+	 * @param file
+	 *            The file to save to; its name decides the format.
+	 * @return An encoder for the file, or null if the dialog was cancelled.
+	 */
+	private ImageEncoder askEncoder(File file) {
+		ImageEncoder encoder = ImageEncoder.forFile(file);
+		boolean png = encoder.getFormat().equals("png");
+		JSpinner spinner = new JSpinner(png ? new SpinnerNumberModel(pngCompressionLevel, 0, 9, 1)
+				: new SpinnerNumberModel(jpegQuality, 1, 100, 1));
+		JPanel panel = new JPanel(new GridLayout(1, 2, 5, 5));
+		panel.add(new JLabel(png ? "Compression level (0-9):" : "Quality (%):"));
+		panel.add(spinner);
+
+		int result = JOptionPane.showConfirmDialog(frame, panel, png ? "Save As PNG" : "Save As JPG",
+				JOptionPane.OK_CANCEL_OPTION);
+		if (result != JOptionPane.OK_OPTION) {
+			return null; // cancelled
+		}
+		if (png) {
+			pngCompressionLevel = (Integer) spinner.getValue();
+			encoder.setCompressionLevel(pngCompressionLevel);
+		} else {
+			jpegQuality = (Integer) spinner.getValue();
+			encoder.setQuality(jpegQuality / 100f);
+		}
+		return encoder;
+	}
+
+	/**
+	 * Save the current image, as it is shown, to a file in the background.
+	 * 
+	 * @param file
+	 *            The file to save to.
+	 * @param encoder
+	 *            The encoder to save it with.
+	 */
+	private void save(File file, ImageEncoder encoder) {
+		if (queueIfBusy("Save", () -> save(file, encoder))) {
+			return;
+		}
+		start(new SaveWorker(file, encoder, currentImage, orientation, largeImage));
+	}
+
+	/**
+	 * Called when saving has finished, failed or been cancelled: report it,
+	 * then start whatever was queued. A save that was cancelled too late,
+	 * once the file was being replaced, is reported when it has really
+	 * ended.
+	 * 
+	 * @param worker
+	 *            The worker that saved the image.
+	 */
+	private void saveDone(SaveWorker worker) {
+		if (!finish(worker)) {
+			return; // cancelled earlier, and already dealt with
+		}
+		if (worker.isCancelled() && !worker.progress.isCancelled()) { // it had committed to replacing the file
+			showStatus("Save could not be cancelled any more.");
+			worker.outcome.whenComplete((result, exc) -> SwingUtilities.invokeLater(
+					() -> reportSave(worker.file, result, exc)));
+		} else if (worker.isCancelled()) {
+			showStatus("Cancelled: Save. The file was left as it was.");
+		} else {
+			try {
+				reportSave(worker.file, worker.get(), null);
+			} catch (InterruptedException | ExecutionException exc) {
+				reportSave(worker.file, null, exc.getCause());
+			}
+		}
+		runQueued();
+	}
 
-			showFilename(selectedFile.getPath());
+	/**
+	 * Show how saving a file has ended.
+	 * 
+	 * @param file
+	 *            The file that was saved.
+	 * @param result
+	 *            How long saving took and how large the file is, or null if
+	 *            it failed.
+	 * @param exc
+	 *            Why saving failed, if it did.
+	 */
+	private void reportSave(File file, ImageEncoder.Result result, Throwable exc) {
+		if (result != null) {
+			showFilename(file.getPath());
+			showStatus("Saved: " + file.getName() + " (" + result + ")");
+		} else if (exc instanceof CancellationException) {
+			showStatus("Cancelled: Save. The file was left as it was.");
+		} else {
+			showStatus("Failed: Save - " + exc);
+		}
+	}
+
+	/**
+	 * Delete the file of the image that is too large for the heap, if there is one.
+	 */
+	private void closeLargeImage() {
+		if (largeImage != null) {
+			largeImage.close();
+			largeImage = null;
 		}
 	}
 
@@ -160,36 +507,33 @@ public class ImageViewer {
 	 *            The filter object to be applied.
 	 */
 	private void applyFilter(Filter filter) {
+		if (queueIfBusy(filter.getName(), () -> applyFilter(filter))
+				|| promoteFirst(filter.getName(), () -> applyFilter(filter))) {
+			return;
+		}
+		if (largeImage != null) { // filtered a chunk at a time into a new file; never turned, so every filter applies as it is
+			MappedImage source = largeImage;
+			start(new LargeImageWorker(filter.getName(), progress -> filterEngine.apply(filter, source, progress), () -> {
+				showStatus("Applied: " + filter.getName());
+				appliedFilters.add(filter);
+			}));
+			return;
+		}
 		if (currentImage != null) {
-			int width = currentImage.getWidth();
-			int height = currentImage.getHeight();
-			OFImage newImage = new OFImage(width, height);
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					newImage.setPixel(x, y, currentImage.getPixel(x, y));
-				}
-			}
-			
-			filter.apply(newImage);
-			frame.repaint();
-			showStatus("Applied: " + filter.getName());
-			
-		
-			/////   help lines for undo()  ///////
-
-			// copy pixel data into new image
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					newImage.setPixel(x, y, newImage.getPixel(x, y));
-				}
+			if (filter.getOrientation() != null) { // Mirror only turns the image round
+				turn(filter.getOrientation());
+				showStatus("Applied: " + filter.getName());
+				appliedFilters.add(filter);
+				frame.pack();
+				return;
 			}
-		
-			
-			imagePanel.setImage(newImage);
-			currentImage = newImage;
-			undoArrayList.add(currentImage);
-			setUndoButton(true);
-			frame.pack();
+			Orientation turnFirst = filter.isOrientationInvariant() ? null : orientation;
+			// the filter reads the current image and writes a new one, so nothing is copied
+			perform(ImageOperation.forFilter(filter, filterEngine), turnFirst, filter, () -> {
+				showStatus("Applied: " + filter.getName());
+				appliedFilters.add(filter);
+				frame.pack();
+			});
 
 		} else {
 			showStatus("No image loaded.");
@@ -197,6 +541,77 @@ public class ImageViewer {
 	}
 	
 
+	/**
+	 * Smooth function: ask for a radius and smooth the current image with it.
+	 */
+	private void smoothWithRadius() {
+		String input = JOptionPane.showInputDialog(frame,
+				"Radius (" + SmoothFilter.MIN_RADIUS + " to " + SmoothFilter.MAX_RADIUS + "):", "3");
+		if (input == null) {
+			return; // cancelled
+		}
+		int radius;
+		try {
+			radius = Integer.parseInt(input.trim());
+		} catch (NumberFormatException exc) {
+			radius = 0;
+		}
+		if (radius < SmoothFilter.MIN_RADIUS || radius > SmoothFilter.MAX_RADIUS) {
+			JOptionPane.showMessageDialog(frame, "The radius must be a whole number from " + SmoothFilter.MIN_RADIUS
+					+ " to " + SmoothFilter.MAX_RADIUS + ".", "Smooth", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		applyFilter(new SmoothFilter("Smooth (radius " + radius + ")", radius));
+	}
+
+	/**
+	 * Edge function: ask for a window size and tolerance and detect the edges
+	 * of the current image with them.
+	 */
+	private void detectEdges() {
+		JSpinner sizeSpinner = new JSpinner(new SpinnerNumberModel(EdgeFilter.DEFAULT_WINDOW_SIZE, 1, 255, 2));
+		JSpinner toleranceSpinner = new JSpinner(new SpinnerNumberModel(EdgeFilter.DEFAULT_TOLERANCE, 0, 255, 1));
+		JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+		panel.add(new JLabel("Window size:"));
+		panel.add(sizeSpinner);
+		panel.add(new JLabel("Tolerance:"));
+		panel.add(toleranceSpinner);
+
+		int result = JOptionPane.showConfirmDialog(frame, panel, "Edge Detection", JOptionPane.OK_CANCEL_OPTION);
+		if (result != JOptionPane.OK_OPTION) {
+			return; // cancelled
+		}
+		int windowSize = (Integer) sizeSpinner.getValue();
+		int tolerance = (Integer) toleranceSpinner.getValue();
+		applyFilter(new EdgeFilter("Edge Detection (" + windowSize + "x" + windowSize + ", tolerance " + tolerance + ")",
+				windowSize, tolerance));
+	}
+
+	/**
+	 * Save Chain function: save the filters applied since the image was opened
+	 * (or since the last chain was saved) as a chain that can be applied in one
+	 * step from the Chains menu.
+	 */
+	private void saveChain() {
+		if (appliedFilters.isEmpty()) {
+			showStatus("No filters applied yet.");
+			return;
+		}
+		String name = JOptionPane.showInputDialog(frame, "Name of the chain:", "Chain " + (menuChains.getItemCount() + 1));
+		if (name == null || name.trim().isEmpty()) {
+			return; // cancelled
+		}
+		FilterChain chain = new FilterChain(name.trim(), appliedFilters);
+		appliedFilters.clear();
+		filters.add(chain);
+
+		JMenuItem item = new JMenuItem(chain.getName());
+		item.addActionListener(e -> applyFilter(chain));
+		menuChains.add(item);
+		menuChains.setEnabled(true);
+		showStatus("Saved chain: " + chain.getName() + " (" + chain.getFilters().size() + " filters)");
+	}
+
 	/**
 	 * 'About' function: show the 'about' box.
 	 */
@@ -206,42 +621,318 @@ public class ImageViewer {
 	}
 
 
+	/**
+	 * Undo function: go back to the version of the image before the last change.
+	 */
 	private void undo() {
-		if (undoArrayList.get(undoArrayList.size() - 1) != null) { // since we move the elements from undoArrayList to redoArrayList,
-			//setUndoButton(false);	// the undoArrayList will be empty after we move everything.
+		if (queueIfBusy("Undo", this::undo)) {
+			return;
+		}
+		if (!history.canUndo()) {
+			setUndoButton(false);
 			showStatus("Undo not available.");
+			return;
 		}
-		else
-			setUndoButton(true);{
-		currentImage = undoArrayList.get(undoArrayList.size() - 2); // if the arrayList isn't empty, 
-		imagePanel.setImage(currentImage);  // get the before last element and delete the last.
-		//setButtonsEnabled(true);
+		replaceImage(history.undo(currentImage)); // only the tiles that differ are copied back
+		orientation = history.getOrientation();
+		imagePanel.setImage(currentImage, orientation);
 		showStatus("Undo done.");
-		redoArrayList.add(undoArrayList.get(undoArrayList.size() - 1));
+		setUndoButton(history.canUndo());
 		setRedoButton(true);
-		undoArrayList.remove(undoArrayList.size() - 1);
-		//frame.pack();
-
-	}
 	}
 
+	/**
+	 * Redo function: go forward to the version of the image that was last undone.
+	 */
 	private void redo() {
-		if (redoArrayList.size() == 0) {
+		if (queueIfBusy("Redo", this::redo)) {
+			return;
+		}
+		if (!history.canRedo()) {
 			setRedoButton(false);
 			showStatus("Redo not available.");
-
+			return;
 		}
-		else {
-			
-		currentImage = redoArrayList.get(redoArrayList.size() - 1);
-		imagePanel.setImage(currentImage);
+		replaceImage(history.redo(currentImage));
+		orientation = history.getOrientation();
+		imagePanel.setImage(currentImage, orientation);
 		showStatus("Redo done.");
-		undoArrayList.add(redoArrayList.get(redoArrayList.size() - 1));
-		redoArrayList.remove(redoArrayList.size() - 1);
-		//frame.pack();
-	}}
+		setUndoButton(true);
+		setRedoButton(history.canRedo());
+	}
+
+	/**
+	 * Make an image the current one. The pixels of the image it replaces are
+	 * given back to the pixel pool, unless Reload still needs them.
+	 * 
+	 * @param image
+	 *            The new current image.
+	 */
+	private void replaceImage(OFImage image) {
+		if (currentImage != null && currentImage != image && currentImage != reloadImage) {
+			currentImage.release();
+		}
+		currentImage = image;
+	}
+
+	/**
+	 * History Memory function: show how much memory the undo history and the
+	 * pixel pool use.
+	 */
+	private void showHistoryMemory() {
+		long mb = 1 << 20;
+		JOptionPane.showMessageDialog(frame, "Versions: " + history.getVersionCount()
+				+ "\nPixel data: " + history.getRetainedBytes() / mb + " MB"
+				+ "\nIn memory: " + history.getMemoryBytes() / mb + " MB of " + history.getBudget() / mb + " MB budget"
+				+ "\nCompressed tiles: " + history.getCompressedTiles() + " (" + history.getCompressions() + " compressed so far)"
+				+ "\nSpilled tiles: " + history.getSpilledTiles() + " (" + history.getSpills() + " spilled so far, "
+				+ history.getLiveSpillBytes() / mb + " MB live in a " + history.getSpillFileBytes() / mb + " MB file)"
+				+ "\nPixel pool: " + PixelPool.getShared(),
+				"History Memory", JOptionPane.INFORMATION_MESSAGE);
+	}
+
+	/**
+	 * Start applying an operation to the current image in the background, as
+	 * it is shown (that is, turned to its orientation first). When it is done,
+	 * the result is shown and recorded in the history.
+	 * 
+	 * @param operation
+	 *            The operation to be applied.
+	 * @param whenDone
+	 *            What to do after the result has been shown.
+	 */
+	private void perform(ImageOperation operation, Runnable whenDone) {
+		perform(operation, orientation, null, whenDone);
+	}
+
+	/**
+	 * Start applying an operation to the current image in the background.
+	 * 
+	 * @param operation
+	 *            The operation to be applied.
+	 * @param turnFirst
+	 *            The orientation to turn the pixels to before the operation
+	 *            gets them; the result is then shown as it is. If null, the
+	 *            operation gets the pixels as they are stored and the result
+	 *            keeps the current orientation, which is only right if the
+	 *            operation does not depend on the orientation.
+	 * @param previewFilter
+	 *            A filter that gives a preview of the result, or null. If the
+	 *            image is larger than the screen, the filter is first applied
+	 *            to a copy scaled down to about screen size, which is shown
+	 *            until the full result is ready.
+	 * @param whenDone
+	 *            What to do after the result has been shown.
+	 */
+	private void perform(ImageOperation operation, Orientation turnFirst, Filter previewFilter, Runnable whenDone) {
+		Orientation previewTurn = turnFirst != null ? turnFirst : Orientation.IDENTITY;
+		ImageOperation turned = operation;
+		if (previewTurn != Orientation.IDENTITY) {
+			turned = ImageOperation.of(operation.getName(),
+					(image, progress) -> {
+						OFImage turnedImage = transformEngine.apply(previewTurn, image);
+						OFImage result = operation.apply(turnedImage, progress);
+						turnedImage.release();
+						return result;
+					});
+		}
+		int previewFactor = 1;
+		if (previewFilter != null) {
+			Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+			previewFactor = Math.max((currentImage.getWidth() + screen.width - 1) / screen.width,
+					(currentImage.getHeight() + screen.height - 1) / screen.height);
+		}
+		start(new OperationWorker(turned, whenDone, currentImage,
+				previewFactor > 1 ? previewFilter : null, previewFactor, previewTurn,
+				turnFirst != null ? Orientation.IDENTITY : orientation, false));
+	}
+
+	/**
+	 * Run an operation in the background.
+	 * 
+	 * @param worker
+	 *            The worker that runs it.
+	 */
+	private void start(BackgroundWork<?> worker) {
+		runningOperation = worker;
+		cancelButton.setEnabled(true);
+		progressTimer.start();
+		runningOperation.execute();
+	}
+
+	/**
+	 * If an operation is running, queue an action to be done after it (and
+	 * after everything queued before), instead of doing it now.
+	 * 
+	 * @param name
+	 *            The name of the action, for the status bar.
+	 * @param action
+	 *            The action; it is called again when it is its turn.
+	 * @return true if the action was queued (or dropped because the queue is
+	 *         full), false if nothing is running and it should be done now.
+	 */
+	private boolean queueIfBusy(String name, Runnable action) {
+		if (runningOperation == null) {
+			return false;
+		}
+		if (queuedActions.size() >= MAX_QUEUED_ACTIONS) {
+			showStatus("Busy - " + name + " was not queued.");
+		} else {
+			queuedActions.add(action);
+			showStatus("Queued: " + name + " (" + queuedActions.size() + " waiting)");
+		}
+		return true;
+	}
+
+	/**
+	 * Called when the running operation has finished, failed or been
+	 * cancelled: show its result, then start whatever was queued.
+	 * 
+	 * @param worker
+	 *            The worker that ran the operation.
+	 */
+	private void operationDone(OperationWorker worker) {
+		if (!finish(worker)) {
+			return; // cancelled earlier, and already dealt with
+		}
+		if (worker.isCancelled()) {
+			imagePanel.setImage(currentImage, orientation); // drop the preview
+			showStatus("Cancelled: " + worker.operation.getName());
+		} else {
+			try {
+				replaceImage(worker.get());
+				orientation = worker.orientation;
+				imagePanel.setImage(currentImage, orientation);
+				if (worker.opening) { // the image as it was opened, to start the history with
+					reloadImage = currentImage;
+					history.reset(currentImage);
+					setUndoButton(false);
+					setRedoButton(false);
+				} else {
+					recordChange(worker.operation, worker.nanos);
+				}
+				if (worker.whenDone != null) {
+					worker.whenDone.run();
+				} else {
+					showStatus("Done: " + worker.operation.getName());
+				}
+			} catch (InterruptedException | ExecutionException exc) {
+				imagePanel.setImage(currentImage, orientation);
+				boolean cancelled = exc.getCause() instanceof CancellationException;
+				showStatus((cancelled ? "Cancelled: " : "Failed: ") + worker.operation.getName());
+				if (worker.opening) {
+					queuedActions.clear(); // they all need the image that could not be loaded
+				}
+			}
+		}
+		runQueued();
+	}
+
+	/**
+	 * Called when work on an image too large for the heap has finished,
+	 * failed or been cancelled: show its result, then start whatever was
+	 * queued.
+	 * 
+	 * @param worker
+	 *            The worker that did the work.
+	 */
+	private void largeImageDone(LargeImageWorker worker) {
+		if (worker.isCancelled()) {
+			worker.abandon(); // its result, if it still comes, is deleted
+		}
+		if (!finish(worker)) {
+			return; // cancelled earlier, and already dealt with
+		}
+		if (worker.isCancelled()) {
+			showStatus("Cancelled: " + worker.getName());
+		} else {
+			try {
+				MappedImage result = worker.get();
+				closeLargeImage(); // there is no undo for images this large
+				largeImage = result;
+				orientation = Orientation.IDENTITY;
+				imagePanel.setImage(largeImage, orientation);
+				worker.whenDone.run();
+			} catch (InterruptedException | ExecutionException exc) {
+				boolean cancelled = exc.getCause() instanceof CancellationException;
+				showStatus((cancelled ? "Cancelled: " : "Failed: ") + worker.getName());
+				if (largeImage == null) {
+					queuedActions.clear(); // they all need the image that could not be loaded
+				}
+			}
+		}
+		runQueued();
+	}
+
+	/**
+	 * Note that the running work has finished.
+	 * 
+	 * @param worker
+	 *            The worker that has finished.
+	 * @return false if it had been cancelled before, and already dealt with.
+	 */
+	private boolean finish(BackgroundWork<?> worker) {
+		if (worker != runningOperation) {
+			return false;
+		}
+		runningOperation = null;
+		progressTimer.stop();
+		cancelButton.setEnabled(false);
+		return true;
+	}
+
+	/**
+	 * Do the queued actions, until one of them starts an operation.
+	 */
+	private void runQueued() {
+		while (runningOperation == null && !queuedActions.isEmpty()) {
+			queuedActions.poll().run();
+		}
+	}
+
+	/**
+	 * Cancel function: stop the running operation and forget the queued ones.
+	 */
+	private void cancelOperations() {
+		queuedActions.clear();
+		if (runningOperation != null) {
+			runningOperation.progress.cancel(); // the work stops at its next check
+			runningOperation.cancel(false);
+		}
+	}
+
+	/**
+	 * Show how far the running operation has got.
+	 */
+	private void showProgress() {
+		if (runningOperation != null) {
+			int percent = (int) (runningOperation.progress.getFraction() * 100);
+			String waiting = queuedActions.isEmpty() ? "" : " (" + queuedActions.size() + " waiting)";
+			showStatus(runningOperation.getName() + "... " + percent + "%" + waiting);
+		}
+	}
+
+	/**
+	 * Record the current image, in its current orientation, as a new version
+	 * in the history.
+	 * 
+	 * @param operation
+	 *            The operation that made the current image from the previous
+	 *            one, or null if it cannot be replayed.
+	 * @param nanos
+	 *            How long the operation took, in nanoseconds.
+	 */
+	private void recordChange(ImageOperation operation, long nanos) {
+		history.push(operation, currentImage, nanos, orientation);
+		setUndoButton(true);
+		setRedoButton(false);
+	}
 
 	private void reload() {
+		if (largeImage != null) {
+			showStatus("Reload is not available for images this large. Open the file again instead.");
+			return;
+		}
 		
 		int result = JOptionPane.showConfirmDialog(option, "You are about to deleted your changes. Do you want to proceed?", 
 			       "Woah!", JOptionPane.INFORMATION_MESSAGE);
@@ -250,11 +941,12 @@ public class ImageViewer {
 			
 		
 		
-		currentImage = reloadImage;
-		imagePanel.setImage(reloadImage);
-		undoArrayList.add(currentImage);
-		frame.pack();
-		showStatus("You Just Deleted Your Changes. You can undo tho ;)");
+		cancelOperations(); // nothing that is still to come should survive a reload either
+		OFImage original = reloadImage;
+		perform(ImageOperation.of("Reload", image -> original.snapshot()), Orientation.IDENTITY, null, () -> { // a copy, since undo and redo change the current image in place
+			frame.pack();
+			showStatus("You Just Deleted Your Changes. You can undo tho ;)");
+		});
 	}
 		else
 			return;
@@ -262,206 +954,154 @@ public class ImageViewer {
 	
 	
 	/**
-	 * Make the current picture larger.
+	 * Zoom In function: show the current image twice as large. Only the view
+	 * changes; the image keeps its size.
 	 */
-	private void makeLarger() {
-		if (currentImage != null) {
-			if (smallerArrayList.size() == 0) { // check if the image has been shrunken before trying to make it larger
-												// this way we get the image from this special array and do not make lose the image.
-				if (currentImage != null) {
-					// create new image with double size
-					int width = currentImage.getWidth();
-					int height = currentImage.getHeight();
-					OFImage newImage = new OFImage(width * 2, height * 2);
-
-					// copy pixel data into new image
-					for (int y = 0; y < height; y++) {
-						for (int x = 0; x < width; x++) {
-							Color col = currentImage.getPixel(x, y);
-							newImage.setPixel(x * 2, y * 2, col);
-							newImage.setPixel(x * 2 + 1, y * 2, col);
-							newImage.setPixel(x * 2, y * 2 + 1, col);
-							newImage.setPixel(x * 2 + 1, y * 2 + 1, col);
-						}
-					}
-
-					currentImage = newImage;
-					imagePanel.setImage(currentImage);
-					undoArrayList.add(currentImage);
-					setUndoButton(true);
-					//frame.pack();
-				}
-			} else {
-				currentImage = smallerArrayList.get(smallerArrayList.size() - 1); // if smaller() has been evoked,
-				smallerArrayList.remove(smallerArrayList.size() - 1); // we are here and so get the shrunken image
-				undoArrayList.add(currentImage);
-				imagePanel.setImage(currentImage);
-				setUndoButton(true);
-				//frame.pack();
-			}
-		} else {
-			showStatus("No image loaded.");
+	private void zoomIn() {
+		if (promoteFirst("Zoom In", this::zoomIn)) {
+			return; // the preview has no more detail to show
 		}
+		zoomTo(imagePanel.getZoom() * 2);
 	}
 
 	/**
-	 * Make the current picture smaller.
+	 * Zoom Out function: show the current image half as large.
 	 */
-	private void makeSmaller() {
-		if (currentImage != null) {
-												// before the method core we
-			smallerArrayList.add(currentImage); // add the image to smallerRarraylist so we can access it with makelarger
-			int width = currentImage.getWidth() / 2;
-			int height = currentImage.getHeight() / 2;
-			OFImage newImage = new OFImage(width, height);
-
-			// copy pixel data into new image
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					newImage.setPixel(x, y, currentImage.getPixel(x * 2, y * 2));
-				}
-			}
+	private void zoomOut() {
+		zoomTo(imagePanel.getZoom() / 2);
+	}
 
-			currentImage = newImage;
-			imagePanel.setImage(currentImage);
-			undoArrayList.add(currentImage);
-			setUndoButton(true);
-			//frame.pack();
+	/**
+	 * Show the current image at a given zoom factor.
+	 * 
+	 * @param zoom
+	 *            How many times larger than the image it is shown.
+	 */
+	private void zoomTo(double zoom) {
+		if (currentImage != null || largeImage != null) {
+			imagePanel.setZoom(zoom);
+			showStatus("Zoom: " + Math.round(imagePanel.getZoom() * 100) + "%");
 		} else {
 			showStatus("No image loaded.");
 		}
 	}
 
-	public void rotateRight() {
-		if (undoArrayList.get(undoArrayList.size() - 1) != null) {
-			if (rotated % 2== 0) {
-				
-				OFImage forRotateRight = undoArrayList.get(undoArrayList.size() - 1);
-				int width = forRotateRight.getWidth();
-				int height = forRotateRight.getHeight();
-				OFImage newImage = new OFImage(height,width);
-				for (int x = 0; x < width; x++)
-					for (int y = 0; y < height; y++)
-						newImage.setPixel(height-1-y, x, forRotateRight.getPixel(x,y));// -1 because of the starting index from zero
-				currentImage = newImage;                    
-				imagePanel.setImage(currentImage);
-				undoArrayList.add(currentImage);
-				setUndoButton(true);
-				rotated++;
-				//frame.pack();
-			}
-
-			else{
-				rotateClockwiseAfterRight();
-
-			}
-			
-
+	/**
+	 * Resize function: ask for a scale and resize the current image by it.
+	 */
+	private void resize() {
+		if (largeImage != null) {
+			showStatus("Resize is not available for images this large.");
+			return;
+		}
+		if (currentImage == null) {
+			showStatus("No image loaded.");
+			return;
 		}
+		String input = JOptionPane.showInputDialog(frame,
+				"Scale in percent (" + MIN_RESIZE_PERCENT + " to " + MAX_RESIZE_PERCENT + "):", "50");
+		if (input == null) {
+			return; // cancelled
+		}
+		double percent;
+		try {
+			percent = Double.parseDouble(input.trim());
+		} catch (NumberFormatException exc) {
+			percent = 0;
+		}
+		if (!(percent >= MIN_RESIZE_PERCENT && percent <= MAX_RESIZE_PERCENT)) {
+			JOptionPane.showMessageDialog(frame, "The scale must be a number from " + MIN_RESIZE_PERCENT
+					+ " to " + MAX_RESIZE_PERCENT + ".", "Resize", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		double factor = percent / 100;
+		String name = "Resize (" + input.trim() + "%)";
+		if (queueIfBusy(name, () -> resizeBy(factor, name)) || promoteFirst(name, () -> resizeBy(factor, name))) {
+			return;
+		}
+		resizeBy(factor, name);
 	}
-	
-	private void rotateClockwiseAfterRight() { // helping to complete rotateRight cycles since rotate from right doesn't seem to work
-		OFImage forRotate = undoArrayList.get(undoArrayList.size() - 2);
-		if (forRotate != null) {
-			int width = forRotate.getWidth();
-			int height = forRotate.getHeight();
-			OFImage newImage = new OFImage(width, height);
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					newImage.setPixel(x, height-1-y, forRotate.getPixel(x, y)); // same as rotateRight but don't bother with width
-				}
-			}
-			currentImage = newImage;
-			imagePanel.setImage(currentImage);
-			//frame.pack();
-			undoArrayList.add(currentImage);
-			setUndoButton(true);
-			rotated++; 
-			//frame.pack();
+
+	/**
+	 * Resize the current image by a factor with the chosen resampling kernel.
+	 * 
+	 * @param factor
+	 *            How many times larger the image gets (below 1 for smaller).
+	 * @param name
+	 *            The name of the operation.
+	 */
+	private void resizeBy(double factor, String name) {
+		if (largeImage != null) { // it turned out so when the full image was loaded
+			showStatus("Resize is not available for images this large.");
+			return;
 		}
+		Resampler.Kernel kernel = resampling; // fixed now, so that a replay gives the same result
+		perform(ImageOperation.of(name, (image, progress) -> resampler.resize(image,
+				Math.max(1, (int) Math.round(image.getWidth() * factor)),
+				Math.max(1, (int) Math.round(image.getHeight() * factor)), kernel, progress)), () -> {
+					frame.pack();
+					showStatus("Done: " + name + ", " + kernel.getName());
+				});
 	}
 
-	
+	/**
+	 * Rotate Right function: turn the current image 90 degrees clockwise.
+	 */
+	public void rotateRight() {
+		transform(Orientation.ROTATE_RIGHT);
+	}
 
-	private void rotate180() { // just rotate to 180 degrees
-		if(rotated%2==0) {
+	/**
+	 * Rotate180 function: turn the current image upside down.
+	 */
+	private void rotate180() {
+		transform(Orientation.ROTATE_180);
+	}
 
-			int width = currentImage.getWidth();
-			int height = currentImage.getHeight();
-			OFImage newImage = new OFImage(width, height);
-			for (int y = 0; y < height; y++) {
-				for (int x = 0; x < width; x++) {
-					newImage.setPixel(x, height - y - 1, currentImage.getPixel(x, y));
-				}
-			}
-			currentImage = newImage;
-			imagePanel.setImage(currentImage);
+	/**
+	 * Rotate Left function: turn the current image 90 degrees counter-clockwise.
+	 */
+	private void rotateLeft() {
+		transform(Orientation.ROTATE_LEFT);
+	}
+
+	/**
+	 * Turn or flip the current image.
+	 * 
+	 * @param change
+	 *            How to turn or flip the image.
+	 */
+	private void transform(Orientation change) {
+		if (queueIfBusy(change.getName(), () -> transform(change))
+				|| promoteFirst(change.getName(), () -> transform(change))) {
+			return;
+		}
+		if (largeImage != null) {
+			showStatus("Turning is not available for images this large.");
+		} else if (currentImage != null) {
+			turn(change);
 			frame.pack();
-			undoArrayList.add(currentImage);
-			setUndoButton(true);
-			rotated++;
-			//frame.pack();
+			showStatus("Done: " + change.getName());
 		} else {
-			showStatus("This function can only be used with non-rotated images or images rotated to 180 degrees");
-			JOptionPane.showMessageDialog(frame, "This function can only be used with non-rotated images or images rotated to 180 degrees.");
+			showStatus("No image loaded.");
 		}
 	}
-	
 
-	private void rotateLeft1() {  // act like normal 90 degrees rotator to the right
-	if (undoArrayList.get(undoArrayList.size() - 1) != null) {
-		//90
-			OFImage forRotateRight = leftArrayList.get(leftArrayList.size() - 1);
-			int width = forRotateRight.getWidth();
-			int height = forRotateRight.getHeight();
-			OFImage newImage = new OFImage(height,width);
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					newImage.setPixel(height-1-y, width-1-x, forRotateRight.getPixel(x,y));
-				}
-			}
-			leftImage=newImage;
-			leftArrayList.add(leftImage);
-			
-	}
-	}
-	
-	private void rotateLeft2() { // act like 180 rotator
-		//180
-			OFImage forRotate = undoArrayList.get(undoArrayList.size() - 1);
-			if (forRotate != null) {
-				int width = forRotate.getWidth();
-				int height = forRotate.getHeight();
-				OFImage newImage = new OFImage(width, height);
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; x < width; x++) {
-						newImage.setPixel(x, height - y - 1, forRotate.getPixel(x, y));
-					}
-				}
-			
-			leftImage=newImage;
-			leftArrayList.add(leftImage);
-			}
-	}
-	
-	private void rotateLeft() {
-		rotateLeft2();
-		rotateLeft1();
-		
-		currentImage = leftArrayList.get(leftArrayList.size() - 1);
-		imagePanel.setImage(currentImage);
-		frame.pack();
-		undoArrayList.add(currentImage);
+	/**
+	 * Turn or flip the current image by changing the orientation it is shown
+	 * in. The pixels stay as they are until an operation needs them turned,
+	 * or the image is saved, so this takes no time however large the image.
+	 * 
+	 * @param change
+	 *            How to turn or flip the image.
+	 */
+	private void turn(Orientation change) {
+		orientation = orientation.then(change);
+		imagePanel.setImage(currentImage, orientation);
+		history.push(orientation);
 		setUndoButton(true);
-		rotated++;
-		//frame.pack();
-		
-	
+		setRedoButton(false);
 	}
-	
-	
-
-
 
 	// ---- support methods ----
 
@@ -497,8 +1137,8 @@ public class ImageViewer {
 	 *            'true' to enable the buttons, 'false' to disable.
 	 */
 	private void setButtonsEnabled(boolean status) {
-		smallerButton.setEnabled(status);
-		largerButton.setEnabled(status);
+		zoomOutButton.setEnabled(status);
+		zoomInButton.setEnabled(status);
 		redoButton.setEnabled(status);
 		undoButton.setEnabled(status);
 		reloadButton.setEnabled(status);
@@ -508,6 +1148,7 @@ public class ImageViewer {
 	private void setMenusEnabled(boolean status) {
 		menuFilter.setEnabled(status);
 		menuEdit.setEnabled(status);
+		menuView.setEnabled(status);
 	}
 	
 	private void setUndoButton(boolean status) {
@@ -519,29 +1160,6 @@ public class ImageViewer {
 	}
 
 
-	/**
-	 * Create a list with all the known filters.
-	 * 
-	 * @return The list of filters.
-	 */
-	private List<Filter> createFilters() {
-		List<Filter> filterList = new ArrayList<>();
-		filterList.add(new DarkerFilter("Darker"));
-		filterList.add(new LighterFilter("Lighter"));
-		filterList.add(new ThresholdFilter("Threshold"));
-		filterList.add(new InvertFilter("Invert"));
-		filterList.add(new SolarizeFilter("Solarize"));
-		filterList.add(new SmoothFilter("Smooth"));
-		filterList.add(new PixelizeFilter("Pixelize"));
-		filterList.add(new MirrorFilter("Mirror"));
-		filterList.add(new GrayScaleFilter("Grayscale"));
-		filterList.add(new EdgeFilter("Edge Detection"));
-		filterList.add(new FishEyeFilter("Fish Eye"));
-		filterList.add(new BlueFilter("Blue Extract"));//new
-
-		return filterList;
-	}
-
 	// ---- Swing stuff to build the frame and all its components and menus ----
 
 	/**
@@ -564,8 +1182,9 @@ public class ImageViewer {
 
 		// Create the image pane in the center
 		imagePanel = new ImagePanel();
-		imagePanel.setBorder(new EtchedBorder());
-		contentPane.add(imagePanel, BorderLayout.CENTER);
+		JScrollPane scrollPane = new JScrollPane(imagePanel); // zooming in makes the view larger, not the image
+		scrollPane.setBorder(new EtchedBorder());
+		contentPane.add(scrollPane, BorderLayout.CENTER);
 
 		// Create two labels at top and bottom for the file name and status messages
 		filenameLabel = new JLabel();
@@ -586,13 +1205,13 @@ public class ImageViewer {
 		
 		
 		
-		smallerButton = new JButton("Smaller");
-		smallerButton.addActionListener(e -> makeSmaller());
-		toolbar.add(smallerButton);
+		zoomOutButton = new JButton("Zoom Out");
+		zoomOutButton.addActionListener(e -> zoomOut());
+		toolbar.add(zoomOutButton);
 
-		largerButton = new JButton("Larger");
-		largerButton.addActionListener(e -> makeLarger());
-		toolbar.add(largerButton);
+		zoomInButton = new JButton("Zoom In");
+		zoomInButton.addActionListener(e -> zoomIn());
+		toolbar.add(zoomInButton);
 
 		
 		rightButton = new JButton("Rotate Right");
@@ -626,6 +1245,11 @@ public class ImageViewer {
 		reloadButton = new JButton("Reload");
 		reloadButton.addActionListener(e -> reload());
 		toolbar2.add(reloadButton);
+
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(e -> cancelOperations());
+		cancelButton.setEnabled(false);
+		toolbar2.add(cancelButton);
 		
 		
 		
@@ -681,6 +1305,10 @@ public class ImageViewer {
             item.addActionListener(e -> openFile());
         menu.add(item);
 
+        item = new JMenuItem("Open Region...");
+            item.addActionListener(e -> openRegion());
+        menu.add(item);
+
         item = new JMenuItem("Close");
             item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, SHORTCUT_MASK));
             item.addActionListener(e -> close());
@@ -711,12 +1339,65 @@ public class ImageViewer {
 		item.addActionListener(e -> redo());
 		menuEdit.add(item);
 
+		item = new JMenuItem("Cancel");
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0));
+		item.addActionListener(e -> cancelOperations());
+		menuEdit.add(item);
+
 
 
 		item = new JMenuItem("Rotate180");
 		item.addActionListener(e -> rotate180());
 		menuEdit.add(item);
 
+		item = new JMenuItem("Flip Horizontal");
+		item.addActionListener(e -> transform(Orientation.FLIP_HORIZONTAL));
+		menuEdit.add(item);
+
+		item = new JMenuItem("Flip Vertical");
+		item.addActionListener(e -> transform(Orientation.FLIP_VERTICAL));
+		menuEdit.add(item);
+		menuEdit.addSeparator();
+
+		item = new JMenuItem("Resize...");
+		item.addActionListener(e -> resize());
+		menuEdit.add(item);
+
+		JMenu menuResampling = new JMenu("Resampling");
+		ButtonGroup kernels = new ButtonGroup();
+		for (Resampler.Kernel kernel : Resampler.Kernel.values()) {
+			JRadioButtonMenuItem kernelItem = new JRadioButtonMenuItem(kernel.getName(), kernel == resampling);
+			kernelItem.addActionListener(e -> resampling = kernel);
+			kernels.add(kernelItem);
+			menuResampling.add(kernelItem);
+		}
+		menuEdit.add(menuResampling);
+		menuEdit.addSeparator();
+
+		item = new JMenuItem("History Memory...");
+		item.addActionListener(e -> showHistoryMemory());
+		menuEdit.add(item);
+
+
+		menuView = new JMenu("View");
+		menubar.add(menuView);
+		menuView.setEnabled(false);
+
+		item = new JMenuItem("Zoom In");
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, SHORTCUT_MASK));
+		item.addActionListener(e -> zoomIn());
+		menuView.add(item);
+
+		item = new JMenuItem("Zoom Out");
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, SHORTCUT_MASK));
+		item.addActionListener(e -> zoomOut());
+		menuView.add(item);
+
+		item = new JMenuItem("Actual Size");
+		item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, SHORTCUT_MASK));
+		item.addActionListener(e -> zoomTo(1));
+		menuView.add(item);
+
 
         // create the Filter menu
         menuFilter = new JMenu("Filter");
@@ -728,6 +1409,24 @@ public class ImageViewer {
             item.addActionListener(e -> applyFilter(filter));
              menuFilter.add(item);
          }
+        menuFilter.addSeparator();
+
+        item = new JMenuItem("Smooth...");
+            item.addActionListener(e -> smoothWithRadius());
+        menuFilter.add(item);
+
+        item = new JMenuItem("Edge Detection...");
+            item.addActionListener(e -> detectEdges());
+        menuFilter.add(item);
+        menuFilter.addSeparator();
+
+        item = new JMenuItem("Save Chain...");
+            item.addActionListener(e -> saveChain());
+        menuFilter.add(item);
+
+        menuChains = new JMenu("Chains");
+        menuChains.setEnabled(false);
+        menuFilter.add(menuChains);
 
         // create the Help menu
         menu = new JMenu("Help");
@@ -738,6 +1437,237 @@ public class ImageViewer {
         menu.add(item);
 
     }
-}
 
+	/**
+	 * Work on the image that is done in the background, one at a time.
+	 */
+	private abstract class BackgroundWork<T> extends SwingWorker<T, OFImage> {
+		protected final Progress progress = new Progress();
+
+		/**
+		 * @return The name of the work, for the status bar.
+		 */
+		abstract String getName();
+	}
+
+	/**
+	 * Runs one operation on a copy of the current image in the background,
+	 * publishing a preview first if it has a preview filter.
+	 */
+	private class OperationWorker extends BackgroundWork<OFImage> {
+		private final ImageOperation operation;
+		private final Runnable whenDone;
+		private final OFImage source;
+		private final Filter previewFilter;
+		private final int previewFactor;
+		private final Orientation previewTurn; // how the operation turns the pixels first
+		private final Orientation orientation; // how the result is shown
+		private final boolean opening; // true if the result is a newly opened image rather than an edit
+		private long nanos;
+
+		OperationWorker(ImageOperation operation, Runnable whenDone, OFImage source,
+				Filter previewFilter, int previewFactor, Orientation previewTurn, Orientation orientation,
+				boolean opening) {
+			this.operation = operation;
+			this.whenDone = whenDone;
+			this.source = source;
+			this.previewFilter = previewFilter;
+			this.previewFactor = previewFactor;
+			this.previewTurn = previewTurn;
+			this.orientation = orientation;
+			this.opening = opening;
+		}
+
+		String getName() {
+			return operation.getName();
+		}
+
+		protected OFImage doInBackground() {
+			if (previewFilter != null) {
+				OFImage preview = source.scaledDown(previewFactor);
+				if (previewTurn != Orientation.IDENTITY) {
+					preview = transformEngine.apply(previewTurn, preview);
+				}
+				preview = filterEngine.filtered(previewFilter.scaledFor(1.0 / previewFactor), preview, progress);
+				publish(preview);
+			}
+			long start = System.nanoTime();
+			OFImage result = operation.apply(source, progress);
+			nanos = System.nanoTime() - start;
+			return result;
+		}
+
+		protected void process(List<OFImage> previews) {
+			if (this == runningOperation) {
+				imagePanel.setPreview(previews.get(previews.size() - 1), orientation);
+			}
+		}
+
+		protected void done() {
+			operationDone(this);
+		}
+	}
+
+	/**
+	 * Opens an image file in the background. Whenever more of it has been
+	 * decoded, the image as decoded so far is published, to be shown until
+	 * the whole image is there.
+	 */
+	private class LoadWorker extends BackgroundWork<OFImage> {
+		private final File file;
+		private final Rectangle region; // the part of the file to open, or null for all
+		private final int subsampling;
+		private final boolean large; // true if the full image is too large for the heap
+		private boolean shown; // true once part of the image has been shown
+
+		LoadWorker(File file, Rectangle region, int subsampling, boolean large) {
+			this.file = file;
+			this.region = region;
+			this.subsampling = subsampling;
+			this.large = large;
+		}
+
+		String getName() {
+			return "Open";
+		}
+
+		protected OFImage doInBackground() {
+			return ImageFileManager.loadImage(file, region, subsampling, progress, image -> publish(image));
+		}
+
+		protected void process(List<OFImage> images) {
+			if (this == runningOperation) {
+				showPartialImage(this, images.get(images.size() - 1));
+			}
+		}
+
+		protected void done() {
+			loadDone(this);
+		}
+	}
+
+	/**
+	 * Saves an image in the background. The file is only replaced once the
+	 * image has been encoded in full.
+	 */
+	private class SaveWorker extends BackgroundWork<ImageEncoder.Result> {
+		private final File file;
+		private final ImageEncoder encoder;
+		private final OFImage image;
+		private final Orientation orientation;
+		private final MappedImage largeImage;
+		// how saving really ends, even after the worker has been cancelled
+		private final CompletableFuture<ImageEncoder.Result> outcome = new CompletableFuture<>();
+
+		SaveWorker(File file, ImageEncoder encoder, OFImage image, Orientation orientation, MappedImage largeImage) {
+			this.file = file;
+			this.encoder = encoder;
+			this.image = image;
+			this.orientation = orientation;
+			this.largeImage = largeImage;
+		}
+
+		String getName() {
+			return "Save";
+		}
+
+		protected ImageEncoder.Result doInBackground() throws IOException {
+			try {
+				ImageEncoder.Result result = save();
+				outcome.complete(result);
+				return result;
+			} catch (Throwable exc) {
+				outcome.completeExceptionally(exc);
+				throw exc;
+			}
+		}
+
+		/**
+		 * Save the image, turned the way it is shown.
+		 */
+		private ImageEncoder.Result save() throws IOException {
+			if (largeImage != null) {
+				return encoder.save(largeImage, file, progress);
+			}
+			// only now are the pixels turned the way they are shown
+			OFImage oriented = orientation == Orientation.IDENTITY ? image : transformEngine.apply(orientation, image);
+			try {
+				return encoder.save(oriented, file, progress);
+			} finally {
+				if (oriented != image) {
+					oriented.release();
+				}
+			}
+		}
+
+		protected void done() {
+			saveDone(this);
+		}
+	}
 
+	/**
+	 * Something done to an image that is too large for the heap.
+	 */
+	private interface LargeImageTask {
+		/**
+		 * Do the task.
+		 * 
+		 * @param progress
+		 *            The progress to report to and check for cancellation.
+		 * @return The resulting image.
+		 * @throws IOException
+		 *             if a file cannot be read or written.
+		 */
+		MappedImage run(Progress progress) throws IOException;
+	}
+
+	/**
+	 * Runs a task on an image too large for the heap in the background.
+	 */
+	private class LargeImageWorker extends BackgroundWork<MappedImage> {
+		private final String name;
+		private final LargeImageTask task;
+		private final Runnable whenDone;
+		private MappedImage result; // the result, once the task has made it
+		private boolean abandoned; // true once the result is no longer wanted
+
+		LargeImageWorker(String name, LargeImageTask task, Runnable whenDone) {
+			this.name = name;
+			this.task = task;
+			this.whenDone = whenDone;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		protected MappedImage doInBackground() throws IOException {
+			MappedImage image = task.run(progress);
+			synchronized (this) {
+				if (abandoned || isCancelled() || progress.isCancelled()) {
+					// largeImageDone has already gone by, so nobody else would delete its file
+					image.close();
+					throw new CancellationException();
+				}
+				result = image;
+			}
+			return image;
+		}
+
+		/**
+		 * Note that the result is not wanted, because the work has been
+		 * cancelled; delete its file if it has already been made.
+		 */
+		synchronized void abandon() {
+			abandoned = true;
+			if (result != null) {
+				result.close();
+				result = null;
+			}
+		}
+
+		protected void done() {
+			largeImageDone(this);
+		}
+	}
+}
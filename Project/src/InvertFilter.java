@@ -1,12 +1,10 @@
-import java.awt.Color;
-
 /**
  * An image filter to invert colors.
  * 
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class InvertFilter extends Filter
+public class InvertFilter extends PointFilter
 {
     /**
      * Constructor for objects of class InvertFilter.
@@ -18,21 +16,30 @@ public class InvertFilter extends Filter
     }
 
     /**
-     * Apply this filter to an image.
+     * Invert each color component.
+     * 
+     * @return  The lookup table of this filter.
+     */
+    protected LookupTable createTable()
+    {
+        return LookupTable.forChannels(value -> 255 - value);
+    }
+
+    /**
+     * Invert the rows of a band. Flipping the bits is even cheaper than
+     * looking the result up in the table.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @param  band  The band to be computed.
      */
-    public void apply(OFImage image)
+    protected void filterRows(ImageBand band)
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                Color pix = image.getPixel(x, y);
-                image.setPixel(x, y, new Color(255 - pix.getRed(),
-                                               255 - pix.getGreen(),
-                                               255 - pix.getBlue()));
-            }
+        int[] source = band.getSource();
+        int[] target = band.getTarget();
+        int s = band.getSourceIndex(0, band.getFromY());
+        int t = band.getTargetIndex(0, band.getFromY());
+        int end = band.getTargetIndex(0, band.getToY());
+        for(; t < end; s++, t++) {
+            target[t] = ~source[s] & 0xffffff;
         }
     }
 }
@@ -4,8 +4,13 @@
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class LighterFilter extends Filter
+public class LighterFilter extends PointFilter
 {
+    // the same scale factor that Color.brighter() uses
+    private static final double FACTOR = 0.7;
+    // the smallest non-zero component value after brightening
+    private static final int MIN_VALUE = (int) (1.0 / (1.0 - FACTOR));
+
 	/**
 	 * Constructor for objects of class LighterFilter.
      * @param name The name of the filter.
@@ -16,19 +21,28 @@ public class LighterFilter extends Filter
 	}
 
     /**
-     * Apply this filter to an image.
+     * Lighten each color component the same way Color.brighter() does.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  The lookup table of this filter.
+     */
+    protected LookupTable createTable()
+    {
+        // like Color.brighter(), black turns into a very dark gray
+        return LookupTable.forChannels(this::brighter)
+                          .withBlack((MIN_VALUE << 16) | (MIN_VALUE << 8) | MIN_VALUE);
+    }
+
+    /**
+     * Brighten a single color component the same way Color.brighter() does.
+     * @param value The component value (0..255).
+     * @return The brightened value (0..255).
      */
-    public void apply(OFImage image)
+    private int brighter(int value)
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                image.setPixel(x, y, image.getPixel(x, y).brighter());
-            }
+        if(value > 0 && value < MIN_VALUE) {
+            value = MIN_VALUE;
         }
+        return Math.min((int) (value / FACTOR), 255);
     }
 
 }
@@ -0,0 +1,235 @@
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A LookupTable is a point operation on colors compiled into tables, so
+ * that it can be applied to an image with one or two array lookups per
+ * pixel instead of any arithmetic.
+ * 
+ * There are two forms. A channel table maps every color component on its
+ * own (with 256 entries per component), and may give black a result of its
+ * own. A brightness table maps the sum of the three components (0 to 765)
+ * to a complete color, which suits operations that mix the components,
+ * such as gray scale or threshold filters.
+ * 
+ * Lookup tables are immutable and can be shared between threads.
+ * 
+ * @version 1.0
+ */
+public class LookupTable
+{
+    // the largest possible sum of the three components of a color
+    private static final int MAX_SUM = 3 * 255;
+
+    // channel tables: component results, already shifted into place
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    // channel tables: the result for black, and whether it differs from
+    // what the component tables give
+    private final int black;
+    private final boolean specialBlack;
+    // brightness tables: the result for every component sum
+    private final int[] bySum;
+
+    /**
+     * Create a channel table that maps each component of a color on its own.
+     * @param red The mapping of red values (0..255 to 0..255).
+     * @param green The mapping of green values (0..255 to 0..255).
+     * @param blue The mapping of blue values (0..255 to 0..255).
+     * @return The lookup table.
+     */
+    public static LookupTable forChannels(IntUnaryOperator red, IntUnaryOperator green,
+                                          IntUnaryOperator blue)
+    {
+        int[] redTable = new int[256];
+        int[] greenTable = new int[256];
+        int[] blueTable = new int[256];
+        for(int value = 0; value < 256; value++) {
+            redTable[value] = clamp(red.applyAsInt(value)) << 16;
+            greenTable[value] = clamp(green.applyAsInt(value)) << 8;
+            blueTable[value] = clamp(blue.applyAsInt(value));
+        }
+        return new LookupTable(redTable, greenTable, blueTable, redTable[0] | greenTable[0] | blueTable[0]);
+    }
+
+    /**
+     * Create a channel table that maps all three components in the same way.
+     * @param mapping The mapping of component values (0..255 to 0..255).
+     * @return The lookup table.
+     */
+    public static LookupTable forChannels(IntUnaryOperator mapping)
+    {
+        return forChannels(mapping, mapping, mapping);
+    }
+
+    /**
+     * Create a table that maps the sum of the three components of a color
+     * to a new color.
+     * @param mapping The mapping from a component sum (0..765) to a packed
+     *                0xRRGGBB color.
+     * @return The lookup table.
+     */
+    public static LookupTable forBrightness(IntUnaryOperator mapping)
+    {
+        int[] table = new int[MAX_SUM + 1];
+        for(int sum = 0; sum <= MAX_SUM; sum++) {
+            table[sum] = mapping.applyAsInt(sum) & 0xffffff;
+        }
+        return new LookupTable(table);
+    }
+
+    /**
+     * Create a channel table.
+     */
+    private LookupTable(int[] red, int[] green, int[] blue, int black)
+    {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.black = black;
+        this.specialBlack = black != (red[0] | green[0] | blue[0]);
+        this.bySum = null;
+    }
+
+    /**
+     * Create a brightness table.
+     */
+    private LookupTable(int[] bySum)
+    {
+        this.red = null;
+        this.green = null;
+        this.blue = null;
+        this.black = bySum[0];
+        this.specialBlack = false;
+        this.bySum = bySum;
+    }
+
+    /**
+     * Return a channel table that works like this one, except that black
+     * (0x000000) is mapped to a given color. This table must be a channel
+     * table.
+     * @param rgb The packed 0xRRGGBB color for black.
+     * @return The lookup table.
+     */
+    public LookupTable withBlack(int rgb)
+    {
+        if(bySum != null) {
+            throw new IllegalStateException("only channel tables can map black separately");
+        }
+        return new LookupTable(red, green, blue, rgb & 0xffffff);
+    }
+
+    /**
+     * Return a table that has the same effect as applying this table and
+     * then another one, if a single table can do that. This is always
+     * possible after a brightness table. After a channel table it is
+     * possible if the next table is a channel table too, and does not give
+     * black a result of its own, or this table never maps another color to
+     * black.
+     * @param next The table to apply after this one.
+     * @return The combined table, or null if there is none.
+     */
+    public LookupTable then(LookupTable next)
+    {
+        if(bySum != null) {
+            int[] table = new int[bySum.length];
+            for(int sum = 0; sum < table.length; sum++) {
+                table[sum] = next.lookup(bySum[sum]);
+            }
+            return new LookupTable(table);
+        }
+        if(next.bySum != null || (next.specialBlack && mapsOtherColorsToBlack())) {
+            return null;
+        }
+        int[] redTable = new int[256];
+        int[] greenTable = new int[256];
+        int[] blueTable = new int[256];
+        for(int value = 0; value < 256; value++) {
+            redTable[value] = next.red[red[value] >> 16];
+            greenTable[value] = next.green[green[value] >> 8];
+            blueTable[value] = next.blue[blue[value]];
+        }
+        return new LookupTable(redTable, greenTable, blueTable, next.lookup(black));
+    }
+
+    /**
+     * Tell whether this channel table maps any color except black to black.
+     * That happens if every component table maps some value to 0, and at
+     * least one of them maps a non-zero value to 0.
+     */
+    private boolean mapsOtherColorsToBlack()
+    {
+        boolean[] zero = new boolean[3];
+        boolean nonZeroToZero = false;
+        int[][] tables = { red, green, blue };
+        for(int c = 0; c < 3; c++) {
+            for(int value = 0; value < 256; value++) {
+                if(tables[c][value] == 0) {
+                    zero[c] = true;
+                    nonZeroToZero |= value != 0;
+                }
+            }
+        }
+        return zero[0] && zero[1] && zero[2] && nonZeroToZero;
+    }
+
+    /**
+     * Map a single color.
+     * @param rgb The packed 0xRRGGBB color.
+     * @return The mapped color.
+     */
+    public int lookup(int rgb)
+    {
+        if(bySum != null) {
+            return bySum[((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)];
+        }
+        if(specialBlack && (rgb & 0xffffff) == 0) {
+            return black;
+        }
+        return red[(rgb >> 16) & 0xff] | green[(rgb >> 8) & 0xff] | blue[rgb & 0xff];
+    }
+
+    /**
+     * Map a range of pixels. Source and target may be the same array.
+     * @param source The pixels to read.
+     * @param s The index of the first pixel to read.
+     * @param target The array receiving the mapped pixels.
+     * @param t The index of the first pixel to write.
+     * @param count The number of pixels.
+     */
+    public void apply(int[] source, int s, int[] target, int t, int count)
+    {
+        int end = s + count;
+        if(bySum != null) {
+            int[] table = bySum;
+            for(; s < end; s++, t++) {
+                int pixel = source[s];
+                target[t] = table[((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)];
+            }
+        }
+        else if(specialBlack) {
+            for(; s < end; s++, t++) {
+                int pixel = source[s];
+                target[t] = pixel == 0 ? black
+                            : red[(pixel >> 16) & 0xff] | green[(pixel >> 8) & 0xff] | blue[pixel & 0xff];
+            }
+        }
+        else {
+            int[] r = red;
+            int[] g = green;
+            int[] b = blue;
+            for(; s < end; s++, t++) {
+                int pixel = source[s];
+                target[t] = r[(pixel >> 16) & 0xff] | g[(pixel >> 8) & 0xff] | b[pixel & 0xff];
+            }
+        }
+    }
+
+    /**
+     * Limit a component value to the range 0..255.
+     */
+    private static int clamp(int value)
+    {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,231 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A MappedImage is an image whose pixels are kept in a temporary file
+ * instead of on the Java heap, so that it can be larger than the heap.
+ * The pixels are packed 0xRRGGBB ints, row by row, as in an OFImage.
+ *
+ * The file is memory-mapped in strips of whole rows. The operating system
+ * pages the strips in and out as they are used, so only the rows that are
+ * being worked on take up memory. The pixels are read and written a range
+ * of rows at a time (see readRows and writeRows); the FilterEngine filters
+ * a MappedImage that way, and an ImagePanel shows it by the tile.
+ *
+ * Through asBufferedImage, ImageIO can decode into a MappedImage and
+ * encode from it directly.
+ *
+ * The file is deleted when the image is closed, or when the application
+ * exits. (The mappings themselves are released when they are garbage
+ * collected.)
+ *
+ * @version 1.1
+ */
+public class MappedImage
+{
+    // The most bytes mapped by one strip.
+    private static final int STRIP_BYTES = 32 << 20;
+    // The most pixels read at once when scaling down.
+    private static final int CHUNK_PIXELS = 1 << 20;
+    // The bits of red, green and blue in a pixel.
+    private static final int[] MASKS = {0xff0000, 0xff00, 0xff};
+
+    private final int width;
+    private final int height;
+    private final int stripRows;
+    private final int stripPixels;
+    private final File file;
+    private final FileChannel channel;
+    private final IntBuffer[] strips;
+
+    /**
+     * Create a black image in a new temporary file.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @throws IOException if the file cannot be created.
+     */
+    public MappedImage(int width, int height) throws IOException
+    {
+        if(width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("unsupported image size: " + width + " x " + height);
+        }
+        this.width = width;
+        this.height = height;
+        stripRows = Math.max(1, Math.min(height, STRIP_BYTES / 4 / width));
+        stripPixels = stripRows * width;
+        file = File.createTempFile("imageviewer-", ".pixels");
+        file.deleteOnExit();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        strips = new IntBuffer[(height + stripRows - 1) / stripRows];
+        try {
+            for(int strip = 0; strip < strips.length; strip++) {
+                int rows = Math.min(stripRows, height - strip * stripRows);
+                strips[strip] = channel.map(FileChannel.MapMode.READ_WRITE, (long) strip * stripPixels * 4,
+                                            (long) rows * width * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+        catch(IOException exc) {
+            close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Make a copy of an image in a new temporary file.
+     * @param image The image to copy.
+     * @return The copy.
+     * @throws IOException if the file cannot be created.
+     */
+    public static MappedImage of(OFImage image) throws IOException
+    {
+        MappedImage copy = new MappedImage(image.getWidth(), image.getHeight());
+        copy.writeRows(0, image.getHeight(), image.getPixels(), 0);
+        return copy;
+    }
+
+    /**
+     * @return The width of the image.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The height of the image.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Copy a range of rows into an array. Several threads may read at once.
+     * @param fromY The first row.
+     * @param toY The row after the last row.
+     * @param pixels The array to copy the rows to.
+     * @param offset The index in pixels of the first pixel of the first row.
+     */
+    public void readRows(int fromY, int toY, int[] pixels, int offset)
+    {
+        for(int y = fromY; y < toY; ) {
+            int strip = y / stripRows;
+            int rows = Math.min(toY, (strip + 1) * stripRows) - y;
+            strips[strip].get((y - strip * stripRows) * width, pixels, offset, rows * width);
+            offset += rows * width;
+            y += rows;
+        }
+    }
+
+    /**
+     * Copy a range of rows from an array. Several threads may write at
+     * once, as long as they write different rows.
+     * @param fromY The first row.
+     * @param toY The row after the last row.
+     * @param pixels The array to copy the rows from.
+     * @param offset The index in pixels of the first pixel of the first row.
+     */
+    public void writeRows(int fromY, int toY, int[] pixels, int offset)
+    {
+        for(int y = fromY; y < toY; ) {
+            int strip = y / stripRows;
+            int rows = Math.min(toY, (strip + 1) * stripRows) - y;
+            strips[strip].put((y - strip * stripRows) * width, pixels, offset, rows * width);
+            offset += rows * width;
+            y += rows;
+        }
+    }
+
+    /**
+     * Create a scaled-down copy of a rectangular region of this image, in the
+     * same way as OFImage.scaledDown. With a factor of 1 it is a plain copy.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param factor How many times smaller the copy is (at least 1).
+     * @return The scaled-down copy of the region.
+     */
+    public OFImage scaledDown(int x, int y, int w, int h, int factor)
+    {
+        OFImage copy = new OFImage((w + factor - 1) / factor, (h + factor - 1) / factor);
+        int[] pixels = copy.getPixels();
+        // a few rows of the copy at a time, averaged from the rows of the region they cover
+        int chunkRows = Math.max(1, CHUNK_PIXELS / factor / w) * factor;
+        for(int fromY = 0; fromY < h; fromY += chunkRows) {
+            int rows = Math.min(chunkRows, h - fromY);
+            OFImage chunk = OFImage.borrow(w, rows);
+            int[] chunkPixels = chunk.getPixels();
+            for(int row = 0; row < rows; row++) {
+                int offset = (y + fromY + row) * width + x;
+                int strip = offset / stripPixels;
+                strips[strip].get(offset - strip * stripPixels, chunkPixels, row * w, w);
+            }
+            OFImage scaled = factor == 1 ? chunk : chunk.scaledDown(factor);
+            System.arraycopy(scaled.getPixels(), 0, pixels, fromY / factor * copy.getWidth(),
+                             scaled.getWidth() * scaled.getHeight());
+            chunk.release();
+        }
+        return copy;
+    }
+
+    /**
+     * Return a BufferedImage that shows the pixels of this image as they are
+     * in the file: what is drawn into it is written to the file. This lets
+     * ImageIO decode into this image and encode from it. Access through it
+     * is pixel by pixel, so it is slower than through readRows and writeRows.
+     * @return A view of this image.
+     */
+    public BufferedImage asBufferedImage()
+    {
+        WritableRaster raster = Raster.createWritableRaster(
+            new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, MASKS),
+            new StripBuffer(), null);
+        return new BufferedImage(new DirectColorModel(24, MASKS[0], MASKS[1], MASKS[2]), raster, false, null);
+    }
+
+    /**
+     * Delete the file of this image. The image must not be used afterwards.
+     */
+    public void close()
+    {
+        try {
+            channel.close();
+        }
+        catch(IOException exc) {
+            // nothing left to do with it: the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * The pixels of the strips as a single bank of a DataBuffer.
+     */
+    private class StripBuffer extends DataBuffer
+    {
+        StripBuffer()
+        {
+            super(TYPE_INT, width * height);
+        }
+
+        public int getElem(int bank, int i)
+        {
+            return strips[i / stripPixels].get(i % stripPixels);
+        }
+
+        public void setElem(int bank, int i, int value)
+        {
+            strips[i / stripPixels].put(i % stripPixels, value);
+        }
+    }
+}
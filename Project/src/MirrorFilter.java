@@ -1,10 +1,8 @@
-import java.awt.Color;
-
 /**
  * An image filter to mirror (flip) the image horizontally.
  * 
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 1.1
  */
 public class MirrorFilter extends Filter
 {
@@ -18,19 +16,40 @@ public class MirrorFilter extends Filter
 	}
 
     /**
-     * Apply this filter to an image.
+     * Return the kind of this filter.
+     * 
+     * @return  Kind.GEOMETRIC, since pixels are moved around.
+     */
+    public Kind getKind()
+    {
+        return Kind.GEOMETRIC;
+    }
+
+    /**
+     * Return the orientation this filter amounts to.
+     * 
+     * @return  Orientation.FLIP_HORIZONTAL.
+     */
+    public Orientation getOrientation()
+    {
+        return Orientation.FLIP_HORIZONTAL;
+    }
+
+    /**
+     * Mirror the rows of a band.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @param  band  The band to be computed.
      */
-    public void apply(OFImage image)
+    protected void filterRows(ImageBand band)
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width / 2; x++) {
-                Color left = image.getPixel(x, y);
-                image.setPixel(x, y, image.getPixel(width - 1 - x, y));
-                image.setPixel(width - 1 - x, y, left);
+        int width = band.getWidth();
+        int[] source = band.getSource();
+        int[] target = band.getTarget();
+        for(int y = band.getFromY(); y < band.getToY(); y++) {
+            int row = band.getTargetIndex(0, y);
+            int sourceRow = band.getSourceIndex(0, y);
+            for(int x = 0; x < width; x++) {
+                target[row + x] = source[sourceRow + width - 1 - x];
             }
         }
     }
@@ -1,22 +1,55 @@
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
 
 /**
  * OFImage is a class that defines an image in OF (Objects First) format.
- * 
+ *
+ * Pixels are always stored as packed 0xRRGGBB ints (TYPE_INT_RGB). Besides
+ * the per-pixel getPixel/setPixel methods, whole rows, rectangular regions
+ * or the raw pixel array can be accessed directly as int values, which is
+ * what filters and transforms should use in their inner loops.
+ *
+ * A snapshot is an independent copy of an image, made in one bulk copy of
+ * its pixel array.
+ *
+ * Images that are made and dropped again and again, such as the results
+ * of filters and transforms, can borrow their pixel array from the shared
+ * PixelPool and give it back when they are released.
+ *
  * @author Michael Kölling and David J. Barnes.
- * @version 2.0
+ * @version 2.5
  */
 public class OFImage extends BufferedImage
 {
+    // The colour model of TYPE_INT_RGB, for images made around a pixel array.
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+
+    // true once the pixels have been given back to the pool
+    private boolean released;
+
     /**
      * Create an OFImage copied from a BufferedImage.
      * @param image The image to copy.
      */
     public OFImage(BufferedImage image)
     {
-         super(image.getColorModel(), image.copyData(null), 
-               image.isAlphaPremultiplied(), null);
+        super(image.getWidth(), image.getHeight(), TYPE_INT_RGB);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = getPixels();
+        if(image instanceof OFImage) {
+            System.arraycopy(((OFImage) image).getPixels(), 0, pixels, 0, pixels.length);
+        }
+        else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            for(int i = 0; i < pixels.length; i++) {
+                pixels[i] &= 0xffffff;
+            }
+        }
     }
 
     /**
@@ -29,6 +62,54 @@ public class OFImage extends BufferedImage
         super(width, height, TYPE_INT_RGB);
     }
 
+    /**
+     * Create an OFImage around an array of pixels, which becomes the pixel
+     * array of the image.
+     */
+    private OFImage(int width, int height, int[] pixels)
+    {
+        super(RGB, Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height,
+                                             width, RGB.getMasks(), null), false, null);
+    }
+
+    /**
+     * Create an independent copy of this image. The pixels are copied in
+     * one go, without first clearing a new image.
+     * @return The copy.
+     */
+    public OFImage snapshot()
+    {
+        OFImage copy = borrow(getWidth(), getHeight());
+        System.arraycopy(getPixels(), 0, copy.getPixels(), 0, getWidth() * getHeight());
+        return copy;
+    }
+
+    /**
+     * Create an OFImage with its pixel array taken from the shared PixelPool
+     * if it holds one of the right size. Its content is undefined, so every
+     * pixel must be written before the image is used.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The new image.
+     */
+    public static OFImage borrow(int width, int height)
+    {
+        return new OFImage(width, height, PixelPool.getShared().borrow(width * height));
+    }
+
+    /**
+     * Give the pixel array of this image to the shared PixelPool, to be
+     * reused by a later image. Nothing may use this image afterwards.
+     * Releasing an image a second time does nothing.
+     */
+    public synchronized void release()
+    {
+        if(!released) {
+            released = true;
+            PixelPool.getShared().release(getPixels());
+        }
+    }
+
     /**
      * Set a given pixel of this image to a specified color. The
      * color is represented as an (r,g,b) value.
@@ -41,7 +122,7 @@ public class OFImage extends BufferedImage
         int pixel = col.getRGB();
         setRGB(x, y, pixel);
     }
-    
+
     /**
      * Get the color value at a specified pixel position.
      * @param x The x position of the pixel.
@@ -53,4 +134,133 @@ public class OFImage extends BufferedImage
         int pixel = getRGB(x, y);
         return new Color(pixel);
     }
+
+    /**
+     * Return the pixel array backing this image. The array holds one packed
+     * 0xRRGGBB int per pixel, row by row, so the pixel (x,y) is found at
+     * index y * getWidth() + x. Changes to the array change the image.
+     * @return The pixel data of this image.
+     */
+    public int[] getPixels()
+    {
+        return ((DataBufferInt) getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Copy one row of pixels into an array.
+     * @param y The row to read.
+     * @param row The array to fill; must hold at least getWidth() values.
+     */
+    public void getRow(int y, int[] row)
+    {
+        int width = getWidth();
+        System.arraycopy(getPixels(), y * width, row, 0, width);
+    }
+
+    /**
+     * Replace one row of pixels with values from an array.
+     * @param y The row to write.
+     * @param row The new pixel values; must hold at least getWidth() values.
+     */
+    public void setRow(int y, int[] row)
+    {
+        int width = getWidth();
+        System.arraycopy(row, 0, getPixels(), y * width, width);
+    }
+
+    /**
+     * Copy a rectangular region of pixels into an array, row by row.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param region The array to fill; must hold at least w * h values.
+     */
+    public void getRegion(int x, int y, int w, int h, int[] region)
+    {
+        int width = getWidth();
+        int[] pixels = getPixels();
+        for(int row = 0; row < h; row++) {
+            System.arraycopy(pixels, (y + row) * width + x, region, row * w, w);
+        }
+    }
+
+    /**
+     * Replace a rectangular region of pixels with values from an array.
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param region The new pixel values, row by row.
+     */
+    public void setRegion(int x, int y, int w, int h, int[] region)
+    {
+        int width = getWidth();
+        int[] pixels = getPixels();
+        for(int row = 0; row < h; row++) {
+            System.arraycopy(region, row * w, pixels, (y + row) * width + x, w);
+        }
+    }
+
+    /**
+     * Create a copy of this image scaled down by a whole factor. Every pixel
+     * of the copy is the average of a block of factor x factor pixels of this
+     * image (blocks at the right and bottom edge may be smaller).
+     * @param factor How many times smaller the copy is (at least 1).
+     * @return The scaled-down copy.
+     */
+    public OFImage scaledDown(int factor)
+    {
+        return scaledDown(0, 0, getWidth(), getHeight(), factor);
+    }
+
+    /**
+     * Create a scaled-down copy of a rectangular region of this image, in the
+     * same way as scaledDown(factor).
+     * @param x The left edge of the region.
+     * @param y The top edge of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param factor How many times smaller the copy is (at least 1).
+     * @return The scaled-down copy of the region.
+     */
+    public OFImage scaledDown(int x, int y, int w, int h, int factor)
+    {
+        int width = getWidth();
+        int newWidth = (w + factor - 1) / factor;
+        int newHeight = (h + factor - 1) / factor;
+        OFImage copy = new OFImage(newWidth, newHeight);
+        int[] source = getPixels();
+        int[] pixels = copy.getPixels();
+        int[] red = new int[newWidth];
+        int[] green = new int[newWidth];
+        int[] blue = new int[newWidth];
+        for(int row = 0; row < newHeight; row++) {
+            int rows = Math.min(factor, h - row * factor);
+            Arrays.fill(red, 0);
+            Arrays.fill(green, 0);
+            Arrays.fill(blue, 0);
+            for(int dy = 0; dy < rows; dy++) {
+                int start = (y + row * factor + dy) * width + x;
+                for(int block = 0, i = 0; block < newWidth; block++) {
+                    int end = Math.min(i + factor, w);
+                    int r = 0, g = 0, b = 0;
+                    for(; i < end; i++) {
+                        int pixel = source[start + i];
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                    red[block] += r;
+                    green[block] += g;
+                    blue[block] += b;
+                }
+            }
+            for(int i = 0; i < newWidth; i++) {
+                int count = rows * Math.min(factor, w - i * factor);
+                pixels[row * newWidth + i] = ((red[i] / count) << 16) | ((green[i] / count) << 8) | (blue[i] / count);
+            }
+        }
+        return copy;
+    }
 }
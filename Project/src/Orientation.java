@@ -0,0 +1,151 @@
+import java.awt.geom.AffineTransform;
+
+/**
+ * The ways an image can be turned and flipped without changing its pixels
+ * otherwise: the four rotations by multiples of 90 degrees, each of them
+ * with or without a mirror image.
+ * 
+ * Each orientation is described by three steps applied to the pixel
+ * positions in this order: swapping x and y (transposing), then mirroring
+ * left to right, then mirroring top to bottom. Orientations can be combined
+ * (see then): turning or flipping an image several times in a row always
+ * amounts to a single orientation.
+ * 
+ * @version 1.1
+ */
+public enum Orientation
+{
+    /** The image as it is. */
+    IDENTITY("Original", false, false, false),
+    /** Turned 90 degrees clockwise. */
+    ROTATE_RIGHT("Rotate Right", true, true, false),
+    /** Turned 180 degrees. */
+    ROTATE_180("Rotate 180", false, true, true),
+    /** Turned 90 degrees counter-clockwise. */
+    ROTATE_LEFT("Rotate Left", true, false, true),
+    /** Mirrored left to right. */
+    FLIP_HORIZONTAL("Flip Horizontal", false, true, false),
+    /** Mirrored top to bottom. */
+    FLIP_VERTICAL("Flip Vertical", false, false, true),
+    /** Mirrored along the diagonal from the top left corner. */
+    TRANSPOSE("Transpose", true, false, false),
+    /** Mirrored along the diagonal from the top right corner. */
+    TRANSVERSE("Transverse", true, true, true);
+
+    private final String name;
+    private final boolean transposing;
+    private final boolean flippingX;
+    private final boolean flippingY;
+
+    private Orientation(String name, boolean transposing, boolean flippingX, boolean flippingY)
+    {
+        this.name = name;
+        this.transposing = transposing;
+        this.flippingX = flippingX;
+        this.flippingY = flippingY;
+    }
+
+    /**
+     * @return The name of this orientation, as shown to the user.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return true if this orientation swaps the width and height of an image.
+     */
+    public boolean isTransposing()
+    {
+        return transposing;
+    }
+
+    /**
+     * @return true if, after transposing, the image is mirrored left to right.
+     */
+    public boolean isFlippingX()
+    {
+        return flippingX;
+    }
+
+    /**
+     * @return true if, after transposing, the image is mirrored top to bottom.
+     */
+    public boolean isFlippingY()
+    {
+        return flippingY;
+    }
+
+    /**
+     * Return the orientation that amounts to first applying this one and
+     * then another one.
+     * @param next The orientation applied second.
+     * @return The combined orientation.
+     */
+    public Orientation then(Orientation next)
+    {
+        // each orientation maps (x, y), taken from the centre, to
+        // (a * x + b * y, c * x + d * y); combining them multiplies the matrices
+        int[] first = matrix();
+        int[] second = next.matrix();
+        int a = second[0] * first[0] + second[1] * first[2];
+        int b = second[0] * first[1] + second[1] * first[3];
+        int c = second[2] * first[0] + second[3] * first[2];
+        int d = second[2] * first[1] + second[3] * first[3];
+        for(Orientation orientation : values()) {
+            int[] m = orientation.matrix();
+            if(m[0] == a && m[1] == b && m[2] == c && m[3] == d) {
+                return orientation;
+            }
+        }
+        throw new IllegalStateException("not an orientation");
+    }
+
+    /**
+     * Return the width an image gets in this orientation.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The width after turning or flipping.
+     */
+    public int getWidth(int width, int height)
+    {
+        return transposing ? height : width;
+    }
+
+    /**
+     * Return the height an image gets in this orientation.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The height after turning or flipping.
+     */
+    public int getHeight(int width, int height)
+    {
+        return transposing ? width : height;
+    }
+
+    /**
+     * Return the transform that draws an image in this orientation, for use
+     * with Graphics2D.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The transform from image to display coordinates.
+     */
+    public AffineTransform toTransform(int width, int height)
+    {
+        int[] m = matrix();
+        double dx = flippingX ? getWidth(width, height) : 0;
+        double dy = flippingY ? getHeight(width, height) : 0;
+        return new AffineTransform(m[0], m[2], m[1], m[3], dx, dy);
+    }
+
+    /**
+     * Return the matrix {a, b, c, d} of this orientation (see then).
+     */
+    private int[] matrix()
+    {
+        int sx = flippingX ? -1 : 1;
+        int sy = flippingY ? -1 : 1;
+        return transposing ? new int[] {0, sx, sy, 0} : new int[] {sx, 0, 0, sy};
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A PixelPool keeps pixel arrays that are no longer needed, so that the
+ * next image of the same size can use one of them instead of a new array.
+ * Every filter, turn and resize makes a new image as large as the one
+ * before; without the pool each of them is a large new allocation, and the
+ * one it replaces is left for the garbage collector.
+ *
+ * Arrays are kept by length. The pool holds at most a byte budget of them;
+ * when it is full, the arrays of the length that was used least recently
+ * are dropped first.
+ *
+ * An array taken from the pool still holds whatever it held before, so it
+ * must be completely overwritten. An array must only be given back when
+ * nothing uses it any more.
+ *
+ * How often an array could be reused (the hit rate) and how many bytes the
+ * pool holds can be read, to tune the budget.
+ *
+ * @version 1.0
+ */
+public class PixelPool
+{
+    /** The budget used unless another one is given: an eighth of the maximum heap size. */
+    public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+    // the pool used by OFImage, with a budget that can be set with the
+    // system property imageviewer.poolBudget (in bytes)
+    private static final PixelPool shared = new PixelPool(Long.getLong("imageviewer.poolBudget", DEFAULT_BUDGET));
+
+    // the free arrays by length, the length used least recently first
+    private final LinkedHashMap<Integer, ArrayDeque<int[]>> free;
+    private long budget;
+    private long retainedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create an empty pool.
+     * @param budget The most bytes of arrays the pool holds.
+     */
+    public PixelPool(long budget)
+    {
+        free = new LinkedHashMap<>(16, 0.75f, true);
+        setBudget(budget);
+    }
+
+    /**
+     * @return The pool that OFImage.borrow takes its pixels from.
+     */
+    public static PixelPool getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Return an array of the given length: one from the pool if there is
+     * one, otherwise a new one. Its content is undefined.
+     * @param length The length of the array.
+     * @return The array.
+     */
+    public int[] borrow(int length)
+    {
+        int[] pixels = take(length);
+        return pixels != null ? pixels : new int[length];
+    }
+
+    /**
+     * Give an array back to the pool. Nothing may use it afterwards. If the
+     * pool is full, the arrays of the lengths used least recently are
+     * dropped to make room; an array larger than the budget is not kept.
+     * @param pixels The array.
+     */
+    public synchronized void release(int[] pixels)
+    {
+        long bytes = 4L * pixels.length;
+        if(bytes > budget || bytes == 0) {
+            return;
+        }
+        free.computeIfAbsent(pixels.length, length -> new ArrayDeque<>()).push(pixels);
+        retainedBytes += bytes;
+        trim();
+    }
+
+    /**
+     * Drop all arrays the pool holds.
+     */
+    public synchronized void clear()
+    {
+        free.clear();
+        retainedBytes = 0;
+    }
+
+    /**
+     * @return The most bytes of arrays the pool holds.
+     */
+    public synchronized long getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Change the budget, dropping arrays at once if the pool holds more.
+     * @param budget The most bytes of arrays the pool holds (at least 0).
+     */
+    public synchronized void setBudget(long budget)
+    {
+        if(budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+        }
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * @return The number of bytes of arrays the pool holds.
+     */
+    public synchronized long getRetainedBytes()
+    {
+        return retainedBytes;
+    }
+
+    /**
+     * @return The number of borrowed arrays that came from the pool.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The number of borrowed arrays that had to be made new.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The number of arrays dropped to stay within the budget.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return The share of borrowed arrays that came from the pool, from 0
+     *         to 1 (0 if none has been borrowed yet).
+     */
+    public synchronized double getHitRate()
+    {
+        long borrowed = hits + misses;
+        return borrowed > 0 ? (double) hits / borrowed : 0;
+    }
+
+    /**
+     * @return A one-line summary of the pool's use.
+     */
+    public synchronized String toString()
+    {
+        return String.format("%d MB of %d MB held, %.0f%% hit rate (%d hits, %d misses, %d evicted)",
+                             retainedBytes >> 20, budget >> 20, 100 * getHitRate(), hits, misses, evictions);
+    }
+
+    /**
+     * Take an array of the given length out of the pool, or return null if
+     * there is none.
+     */
+    private synchronized int[] take(int length)
+    {
+        ArrayDeque<int[]> arrays = free.get(length);
+        if(arrays == null) {
+            misses++;
+            return null;
+        }
+        int[] pixels = arrays.pop();
+        if(arrays.isEmpty()) {
+            free.remove(length);
+        }
+        retainedBytes -= 4L * length;
+        hits++;
+        return pixels;
+    }
+
+    /**
+     * Drop arrays, those of the length used least recently and among them
+     * the oldest first, until the pool is within its budget.
+     */
+    private void trim()
+    {
+        Iterator<Map.Entry<Integer, ArrayDeque<int[]>>> entries = free.entrySet().iterator();
+        while(retainedBytes > budget) {
+            Map.Entry<Integer, ArrayDeque<int[]>> entry = entries.next();
+            ArrayDeque<int[]> arrays = entry.getValue();
+            while(retainedBytes > budget && !arrays.isEmpty()) {
+                arrays.removeLast();
+                retainedBytes -= 4L * entry.getKey();
+                evictions++;
+            }
+            if(arrays.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+}
@@ -1,42 +1,88 @@
-import java.awt.Color;
-
 /**
  * An image filter to create a pixelization effect, like an enlarged
  * low-resolution digital image.
  * 
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 1.1
  */
 public class PixelizeFilter extends Filter
 {
+    private static final int PIXEL_SIZE = 5;
+
+    private final int pixelSize;
+
     /**
      * Constructor for objects of class PixelizeFilter.
      * @param name The name of the filter.
      */
     public PixelizeFilter(String name)
+    {
+        this(name, PIXEL_SIZE);
+    }
+
+    /**
+     * Constructor for a filter with a different block size, for scaled copies.
+     * @param name The name of the filter.
+     * @param pixelSize The width and height of a block.
+     */
+    private PixelizeFilter(String name, int pixelSize)
     {
         super(name);
+        this.pixelSize = pixelSize;
+    }
+
+    /**
+     * Return the kind of this filter.
+     * 
+     * @return  Kind.GEOMETRIC, since pixels are copied over their block.
+     */
+    public Kind getKind()
+    {
+        return Kind.GEOMETRIC;
+    }
+
+    /**
+     * Return how many rows above a pixel its block color may come from.
+     * 
+     * @return  The reach of this filter, in rows.
+     */
+    public int getReach()
+    {
+        return pixelSize - 1;
+    }
+
+    /**
+     * Return a filter with the block size scaled by a factor (but at least 1).
+     * 
+     * @param  factor  The scale of the copy the filter is meant for.
+     * @return  A filter for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        int scaled = Math.max(1, (int) Math.round(pixelSize * factor));
+        return scaled == pixelSize ? this : new PixelizeFilter(getName(), scaled);
     }
 
     /**
-     * Apply this filter to an image.
+     * Pixelize the rows of a band. Every pixel gets the color of the top
+     * left pixel of its block.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @param  band  The band to be computed.
      */
-    public void apply(OFImage image)
+    protected void filterRows(ImageBand band)
     {
-        final int PIXEL_SIZE = 5;
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = band.getWidth();
+        int[] source = band.getSource();
+        int[] target = band.getTarget();
         
-        for(int y = 0; y < height; y += PIXEL_SIZE) {
-            for(int x = 0; x < width; x += PIXEL_SIZE) {
-                Color pix = image.getPixel(x, y);
-                for(int dy = y; dy < y + PIXEL_SIZE; dy++) {
-                    for(int dx = x; dx < x + PIXEL_SIZE; dx++) {
-                        if( dx < width && dy < height )
-                            image.setPixel(dx, dy, pix);
-                    }
+        for(int y = band.getFromY(); y < band.getToY(); y++) {
+            int row = band.getTargetIndex(0, y);
+            int sourceRow = band.getSourceIndex(0, y - y % pixelSize);
+            for(int x = 0; x < width; x += pixelSize) {
+                int pix = source[sourceRow + x];
+                int maxX = Math.min(x + pixelSize, width);
+                for(int dx = x; dx < maxX; dx++) {
+                    target[row + dx] = pix;
                 }
             }
         }
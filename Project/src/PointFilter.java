@@ -0,0 +1,65 @@
+/**
+ * A PointFilter is a filter that changes every pixel on its own, depending
+ * on nothing but the pixel's color. Subclasses describe their operation as
+ * a LookupTable, which is compiled once and then applied to every pixel.
+ * 
+ * @version 1.0
+ */
+public abstract class PointFilter extends Filter
+{
+    // compiled on first use; tables are immutable, so a race merely
+    // compiles the same table twice
+    private LookupTable table;
+
+    /**
+     * Create a new point filter with a given name.
+     * @param name The name of the filter.
+     */
+    public PointFilter(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Return the kind of this filter.
+     * 
+     * @return  Kind.POINT, since every pixel is changed on its own.
+     */
+    public Kind getKind()
+    {
+        return Kind.POINT;
+    }
+
+    /**
+     * Return the lookup table that describes this filter.
+     * 
+     * @return  The lookup table of this filter.
+     */
+    public LookupTable getTable()
+    {
+        if(table == null) {
+            table = createTable();
+        }
+        return table;
+    }
+
+    /**
+     * Compile the operation of this filter into a lookup table.
+     * 
+     * @return  The lookup table of this filter.
+     */
+    protected abstract LookupTable createTable();
+
+    /**
+     * Filter the rows of a band through the lookup table.
+     * 
+     * @param  band  The band to be computed.
+     */
+    protected void filterRows(ImageBand band)
+    {
+        int s = band.getSourceIndex(0, band.getFromY());
+        int t = band.getTargetIndex(0, band.getFromY());
+        int count = (band.getToY() - band.getFromY()) * band.getWidth();
+        getTable().apply(band.getSource(), s, band.getTarget(), t, count);
+    }
+}
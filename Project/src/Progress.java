@@ -0,0 +1,104 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Progress tracks how far a piece of work running in the background has
+ * got, and lets another thread ask it to stop.
+ * 
+ * The work sets the total amount it has to do and reports each part it
+ * finishes; any thread can read the fraction done. Cancelling only sets a
+ * flag: the work checks it regularly (with checkCancelled) and stops by
+ * throwing a CancellationException.
+ * 
+ * Work that ends in a step that cannot be taken back, such as replacing a
+ * file, commits to it first: from then on it is no longer cancelled, so
+ * whoever cancelled it can tell from isCancelled whether it stopped in time.
+ * 
+ * @version 1.1
+ */
+public class Progress
+{
+    private final AtomicLong done;
+    private volatile long total;
+    private volatile boolean cancelled;
+    private boolean committed;
+
+    /**
+     * Create a new Progress with nothing to do yet.
+     */
+    public Progress()
+    {
+        done = new AtomicLong();
+        total = 0;
+        cancelled = false;
+    }
+
+    /**
+     * Start counting a new amount of work.
+     * @param total The amount of work to be done (in any unit, such as rows).
+     */
+    public void start(long total)
+    {
+        done.set(0);
+        this.total = total;
+    }
+
+    /**
+     * Report that part of the work is done. May be called from any thread.
+     * @param amount The amount of work just finished.
+     */
+    public void advance(long amount)
+    {
+        done.addAndGet(amount);
+    }
+
+    /**
+     * Return how much of the work is done.
+     * @return A value from 0 to 1, or 0 if no work has been started.
+     */
+    public double getFraction()
+    {
+        long all = total;
+        return all > 0 ? Math.min(1.0, (double) done.get() / all) : 0;
+    }
+
+    /**
+     * Ask the work to stop, unless it has already committed to its end.
+     */
+    public synchronized void cancel()
+    {
+        if(!committed) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @return true if the work has been asked to stop.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Stop the work if it has been asked to.
+     * @throws CancellationException if cancel has been called.
+     */
+    public void checkCancelled()
+    {
+        if(cancelled) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Stop the work if it has been asked to, and otherwise commit it to
+     * its end: cancel has no effect afterwards.
+     * @throws CancellationException if cancel has been called.
+     */
+    public synchronized void commit()
+    {
+        checkCancelled();
+        committed = true;
+    }
+}
@@ -0,0 +1,462 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Resampler scales images to any size, using all processor cores for
+ * large images.
+ *
+ * Every pixel of the result is a weighted average of the pixels around the
+ * place in the original it comes from; the weights are given by a kernel
+ * (see Kernel). When an image is made smaller the kernel is widened by the
+ * same factor, so that every original pixel is taken into account and fine
+ * detail is averaged out instead of turning into jagged patterns.
+ *
+ * The kernels are separable, so an image is scaled in two passes: first
+ * every row is scaled to the new width, then every column to the new
+ * height. The weights are worked out once per pass, as fixed-point
+ * integers, for every column or row of the result. Each pass is split into
+ * bands of rows that are computed in parallel.
+ *
+ * The result and the image between the two passes borrow their pixels from
+ * the shared PixelPool; the one between the passes is given back after the
+ * second pass.
+ *
+ * @version 1.1
+ */
+public class Resampler
+{
+    /**
+     * The kernels a Resampler can weight pixels with. The weight of an
+     * original pixel depends on its distance from the place a new pixel
+     * comes from, measured in pixels of the original (or, when making an
+     * image smaller, in pixels of the result).
+     */
+    public enum Kernel
+    {
+        /** The average of the pixels the new pixel covers. */
+        AREA("Area Average", 0.5) {
+            public double weight(double x)
+            {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        /** Linear interpolation between the two nearest pixels. */
+        BILINEAR("Bilinear", 1) {
+            public double weight(double x)
+            {
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            }
+        },
+        /** Cubic interpolation between the four nearest pixels (Keys, a = -0.5). */
+        BICUBIC("Bicubic", 2) {
+            public double weight(double x)
+            {
+                x = Math.abs(x);
+                if(x < 1) {
+                    return (1.5 * x - 2.5) * x * x + 1;
+                }
+                if(x < 2) {
+                    return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                }
+                return 0;
+            }
+        },
+        /** A windowed sinc over the six nearest pixels; the sharpest of these. */
+        LANCZOS("Lanczos", 3) {
+            public double weight(double x)
+            {
+                x = Math.abs(x);
+                if(x < 1e-9) {
+                    return 1;
+                }
+                if(x >= 3) {
+                    return 0;
+                }
+                double px = Math.PI * x;
+                return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+        };
+
+        private final String name;
+        private final double radius;
+
+        private Kernel(String name, double radius)
+        {
+            this.name = name;
+            this.radius = radius;
+        }
+
+        /**
+         * @return The name of this kernel, as shown to the user.
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return The distance beyond which this kernel's weights are zero.
+         */
+        public double getRadius()
+        {
+            return radius;
+        }
+
+        /**
+         * Return the weight of an original pixel at a given distance from the
+         * place a new pixel comes from. The weights are normalized later, so
+         * they need not add up to one.
+         * @param x The distance.
+         * @return The weight.
+         */
+        public abstract double weight(double x);
+    }
+
+    // the number of fraction bits of the fixed-point weights
+    private static final int WEIGHT_BITS = 14;
+    private static final int ONE = 1 << WEIGHT_BITS;
+    // one half in both halves of a spread red and blue sum (see spread), for rounding
+    private static final long HALF_RED_BLUE = ((long) (ONE / 2) << 32) | (ONE / 2);
+    // the number of columns the column pass adds up at a time, so that its
+    // sums stay in the first-level cache
+    private static final int STRIP_WIDTH = 1024;
+    // bands smaller than this (in pixels of the result) are not split any further
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a Resampler that uses one thread per processor core.
+     */
+    public Resampler()
+    {
+        this(new ForkJoinPool());
+    }
+
+    /**
+     * Create a Resampler that runs its work on a given pool.
+     * @param pool The pool to run the work on.
+     */
+    public Resampler(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Create a scaled copy of an image.
+     * @param image The image to copy; it is not changed.
+     * @param width The width of the copy (at least 1).
+     * @param height The height of the copy (at least 1).
+     * @param kernel The kernel to weight the pixels with.
+     * @return The new image.
+     */
+    public OFImage resize(OFImage image, int width, int height, Kernel kernel)
+    {
+        return resize(image, width, height, kernel, new Progress());
+    }
+
+    /**
+     * Create a scaled copy of an image, reporting the rows done to a Progress.
+     * @param image The image to copy; it is not changed.
+     * @param width The width of the copy (at least 1).
+     * @param height The height of the copy (at least 1).
+     * @param kernel The kernel to weight the pixels with.
+     * @param progress The progress to report to and check for cancellation.
+     * @return The new image.
+     * @throws java.util.concurrent.CancellationException if the progress is
+     *         cancelled.
+     */
+    public OFImage resize(OFImage image, int width, int height, Kernel kernel, Progress progress)
+    {
+        if(width < 1 || height < 1) {
+            throw new IllegalArgumentException("size must be at least 1x1: " + width + "x" + height);
+        }
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        OFImage result = OFImage.borrow(width, height);
+        boolean scaleRows = width != sourceWidth;
+        boolean scaleColumns = height != sourceHeight;
+        progress.start((scaleRows ? Math.min(height, sourceHeight) : 0) + (scaleColumns ? height : 0));
+
+        // a pass that does not change the size would just copy the pixels
+        int[] source = image.getPixels();
+        int[] target = result.getPixels();
+        if(scaleRows && scaleColumns) {
+            // the column pass is the faster one per pixel, so when the image
+            // gets lower it goes first and leaves fewer rows for the row pass
+            boolean columnsFirst = height < sourceHeight;
+            int[] between = PixelPool.getShared().borrow(columnsFirst ? sourceWidth * height : width * sourceHeight);
+            if(columnsFirst) {
+                scaleColumns(source, between, sourceWidth, sourceHeight, height, kernel, progress);
+                scaleRows(between, target, sourceWidth, width, height, kernel, progress);
+            }
+            else {
+                scaleRows(source, between, sourceWidth, width, sourceHeight, kernel, progress);
+                scaleColumns(between, target, width, sourceHeight, height, kernel, progress);
+            }
+            PixelPool.getShared().release(between); // not after a cancellation, when bands may still use it
+        }
+        else if(scaleRows) {
+            scaleRows(source, target, sourceWidth, width, height, kernel, progress);
+        }
+        else if(scaleColumns) {
+            scaleColumns(source, target, width, sourceHeight, height, kernel, progress);
+        }
+        else {
+            System.arraycopy(source, 0, target, 0, source.length);
+        }
+        return result;
+    }
+
+    /**
+     * Scale every row of an image to a new width.
+     */
+    private void scaleRows(int[] source, int[] target, int sourceWidth, int width, int height,
+                           Kernel kernel, Progress progress)
+    {
+        pool.invoke(new BandTask(source, target, weights(sourceWidth, width, kernel), true,
+                                 sourceWidth, width, minRows(width), 0, height, progress));
+    }
+
+    /**
+     * Scale every column of an image to a new height.
+     */
+    private void scaleColumns(int[] source, int[] target, int width, int sourceHeight, int height,
+                              Kernel kernel, Progress progress)
+    {
+        pool.invoke(new BandTask(source, target, weights(sourceHeight, height, kernel), false,
+                                 width, width, minRows(width), 0, height, progress));
+    }
+
+    /**
+     * Return the smallest number of rows of a given width worth a band of their own.
+     */
+    private static int minRows(int width)
+    {
+        return Math.max(1, MIN_BAND_PIXELS / width);
+    }
+
+    /**
+     * Work out the weights for scaling a line of pixels to a new length.
+     */
+    private static Weights weights(int sourceSize, int targetSize, Kernel kernel)
+    {
+        double scale = (double) sourceSize / targetSize;
+        double widen = Math.max(scale, 1);
+        double support = kernel.getRadius() * widen;
+        Weights weights = new Weights(targetSize, 2 * (int) Math.ceil(support) + 1);
+        double[] values = new double[weights.stride];
+        for(int i = 0; i < targetSize; i++) {
+            // pixel i of the result is centred on this place in the original
+            double centre = (i + 0.5) * scale;
+            int first = Math.max((int) Math.floor(centre - support), 0);
+            int last = Math.min((int) Math.ceil(centre + support), sourceSize);
+            double sum = 0;
+            for(int j = first; j < last; j++) {
+                values[j - first] = kernel.weight((j + 0.5 - centre) / widen);
+                sum += values[j - first];
+            }
+            if(sum == 0) {
+                // too small a kernel to reach any pixel; take the nearest one
+                first = Math.min((int) centre, sourceSize - 1);
+                last = first + 1;
+                values[0] = sum = 1;
+            }
+
+            // round to fixed point, giving the rounding error to the largest
+            // weight so that the weights still add up to exactly one
+            int offset = i * weights.stride;
+            int total = 0;
+            int largest = offset;
+            for(int j = first; j < last; j++) {
+                int weight = (int) Math.round(values[j - first] / sum * ONE);
+                weights.weights[offset + j - first] = weight;
+                total += weight;
+                if(weight > weights.weights[largest]) {
+                    largest = offset + j - first;
+                }
+            }
+            weights.weights[largest] += ONE - total;
+            weights.first[i] = first;
+            weights.count[i] = last - first;
+        }
+        return weights;
+    }
+
+    /**
+     * Scale the rows fromY to toY of the source to the width of the target.
+     */
+    private static void weightRows(int[] source, int[] target, Weights weights,
+                                  int sourceWidth, int targetWidth, int fromY, int toY)
+    {
+        int[] first = weights.first;
+        int[] count = weights.count;
+        int[] w = weights.weights;
+        int stride = weights.stride;
+        for(int y = fromY; y < toY; y++) {
+            int s = y * sourceWidth;
+            int t = y * targetWidth;
+            for(int x = 0; x < targetWidth; x++) {
+                int from = s + first[x];
+                int o = x * stride;
+                long redBlue = HALF_RED_BLUE;
+                int g = ONE / 2;
+                for(int k = 0; k < count[x]; k++) {
+                    int pixel = source[from + k];
+                    int weight = w[o + k];
+                    redBlue += weight * spread(pixel);
+                    g += weight * ((pixel >> 8) & 0xff);
+                }
+                target[t + x] = pack(redBlue, g);
+            }
+        }
+    }
+
+    /**
+     * Compute the target rows fromY to toY from the rows of the source, all
+     * of the same width. Strips of whole rows are added up at a time, so
+     * that memory is read in order.
+     */
+    private static void weightColumns(int[] source, int[] target, Weights weights,
+                                     int width, int fromY, int toY)
+    {
+        int[] red = new int[STRIP_WIDTH];
+        int[] green = new int[STRIP_WIDTH];
+        int[] blue = new int[STRIP_WIDTH];
+        for(int y = fromY; y < toY; y++) {
+            int o = y * weights.stride;
+            int t = y * width;
+            for(int strip = 0; strip < width; strip += STRIP_WIDTH) {
+                int n = Math.min(STRIP_WIDTH, width - strip);
+                Arrays.fill(red, ONE / 2);
+                Arrays.fill(green, ONE / 2);
+                Arrays.fill(blue, ONE / 2);
+                for(int k = 0; k < weights.count[y]; k++) {
+                    int s = (weights.first[y] + k) * width + strip;
+                    int weight = weights.weights[o + k];
+                    for(int x = 0; x < n; x++) {
+                        int pixel = source[s + x];
+                        red[x] += weight * ((pixel >> 16) & 0xff);
+                        green[x] += weight * ((pixel >> 8) & 0xff);
+                        blue[x] += weight * (pixel & 0xff);
+                    }
+                }
+                for(int x = 0; x < n; x++) {
+                    target[t + strip + x] = (clamp(red[x]) << 16) | (clamp(green[x]) << 8) | clamp(blue[x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Spread the red and blue components of a packed 0xRRGGBB color 32 bits
+     * apart in a long, so that both can be weighted with one multiplication.
+     * The blue sum may go negative and borrow from the red one; pack undoes
+     * that.
+     */
+    private static long spread(int rgb)
+    {
+        return ((long) (rgb & 0xff0000) << 16) | (rgb & 0xff);
+    }
+
+    /**
+     * Turn the fixed-point sums of a new pixel back into a packed color.
+     */
+    private static int pack(long redBlue, int green)
+    {
+        int blue = (int) redBlue;
+        int red = (int) ((redBlue - blue) >> 32);
+        return (clamp(red) << 16) | (clamp(green) << 8) | clamp(blue);
+    }
+
+    /**
+     * Turn a fixed-point sum into a color component from 0 to 255. Kernels
+     * with negative weights can overshoot either way.
+     */
+    private static int clamp(int sum)
+    {
+        int value = sum >> WEIGHT_BITS;
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    /**
+     * The weights for scaling a line of pixels: for every new pixel, the
+     * first original pixel it is taken from, how many there are, and their
+     * weights (stride entries per new pixel, of which count are used).
+     */
+    private static class Weights
+    {
+        private final int[] first;
+        private final int[] count;
+        private final int[] weights;
+        private final int stride;
+
+        Weights(int size, int stride)
+        {
+            this.first = new int[size];
+            this.count = new int[size];
+            this.weights = new int[size * stride];
+            this.stride = stride;
+        }
+    }
+
+    /**
+     * A task that computes a band of rows of one pass, splitting it in halves
+     * as long as it is large enough to be worth running in parallel.
+     */
+    private static class BandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] source;
+        private final int[] target;
+        private final Weights weights;
+        // true to scale the rows to a new width, false to scale the columns to a new height
+        private final boolean horizontal;
+        private final int sourceWidth;
+        private final int targetWidth;
+        private final int minRows;
+        private final int fromY;
+        private final int toY;
+        private final Progress progress;
+
+        BandTask(int[] source, int[] target, Weights weights, boolean horizontal,
+                 int sourceWidth, int targetWidth, int minRows, int fromY, int toY, Progress progress)
+        {
+            this.source = source;
+            this.target = target;
+            this.weights = weights;
+            this.horizontal = horizontal;
+            this.sourceWidth = sourceWidth;
+            this.targetWidth = targetWidth;
+            this.minRows = minRows;
+            this.fromY = fromY;
+            this.toY = toY;
+            this.progress = progress;
+        }
+
+        protected void compute()
+        {
+            int rows = toY - fromY;
+            if(rows / 2 < minRows) {
+                progress.checkCancelled();
+                if(horizontal) {
+                    weightRows(source, target, weights, sourceWidth, targetWidth, fromY, toY);
+                }
+                else {
+                    weightColumns(source, target, weights, targetWidth, fromY, toY);
+                }
+                progress.advance(rows);
+            }
+            else {
+                int middle = fromY + rows / 2;
+                invokeAll(new BandTask(source, target, weights, horizontal, sourceWidth, targetWidth,
+                                       minRows, fromY, middle, progress),
+                          new BandTask(source, target, weights, horizontal, sourceWidth, targetWidth,
+                                       minRows, middle, toY, progress));
+            }
+        }
+    }
+}
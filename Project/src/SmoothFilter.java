@@ -1,106 +1,209 @@
-import java.awt.Color;
-import java.util.List;
-import java.util.ArrayList;
-
-
 /**
  * An image filter to reduce sharp edges and pixelization. A bit like
  * a soft lens.
- * 
+ *
+ * Each pixel is replaced by the average of all pixels in the square of the
+ * given radius around it (only those inside the image are counted). The
+ * filter is computed as a box blur with running sums, first along each row
+ * and then down the columns, so the cost per pixel does not depend on the
+ * radius.
+ *
  * @author Michael Kölling and David J. Barnes.
- * @version 1.0
+ * @version 2.1
  */
 public class SmoothFilter extends Filter
 {
-    private OFImage original;
-    private int width;
-    private int height;
-    
+    /** The smallest radius this filter supports. */
+    public static final int MIN_RADIUS = 1;
+    /** The largest radius this filter supports. */
+    public static final int MAX_RADIUS = 50;
+
+    private final int radius;
+
     /**
-     * Constructor for objects of class SmoothFilter.
+     * Constructor for objects of class SmoothFilter. The filter averages
+     * each pixel with its directly adjacent pixels.
      * @param name The name of the filter.
      */
     public SmoothFilter(String name)
     {
-        super(name);
+        this(name, MIN_RADIUS);
     }
 
     /**
-     * Apply this filter to an image.
-     * 
-     * @param  image  The image to be changed by this filter.
+     * Constructor for objects of class SmoothFilter with a given radius.
+     * @param name The name of the filter.
+     * @param radius The distance of the farthest pixels that are averaged
+     *               (MIN_RADIUS to MAX_RADIUS).
      */
-    public void apply(OFImage image)
+    public SmoothFilter(String name, int radius)
     {
-        original = new OFImage(image);
-        width = original.getWidth();
-        height = original.getHeight();
-        
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                image.setPixel(x, y, smooth(x, y));
-            }
+        super(name);
+        if(radius < MIN_RADIUS || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be between " + MIN_RADIUS
+                                               + " and " + MAX_RADIUS + ": " + radius);
         }
+        this.radius = radius;
     }
-    
+
     /**
-     * Return a new color that is the smoothed color of a given
-     * position. The "smoothed color" is the color value that is the
-     * average of this pixel and all the adjacent pixels.
-     * @param xpos The xposition of the pixel.
-     * @param ypos The yposition of the pixel.
-     * @return The smoothed color.
+     * Return the radius of this filter.
+     *
+     * @return  The distance of the farthest pixels that are averaged.
      */
-    private Color smooth(int xpos, int ypos)
+    public int getRadius()
     {
-        List<Color> pixels = new ArrayList<>(9);
-        
-        for(int y = ypos - 1; y <= ypos + 1; y++) {
-            for(int x = xpos - 1; x <= xpos + 1; x++) {
-                if( x >= 0 && x < width && y >= 0 && y < height )
-                    pixels.add(original.getPixel(x, y));
-            }
-        }
+        return radius;
+    }
+
+    /**
+     * Return the kind of this filter.
+     *
+     * @return  Kind.NEIGHBORHOOD, since each pixel is averaged with its neighbours.
+     */
+    public Kind getKind()
+    {
+        return Kind.NEIGHBORHOOD;
+    }
+
+    /**
+     * Return how many rows above and below a pixel are averaged.
+     *
+     * @return  The reach of this filter, in rows.
+     */
+    public int getReach()
+    {
+        return radius;
+    }
 
-        return new Color(avgRed(pixels), avgGreen(pixels), avgBlue(pixels));
+    /**
+     * Return a filter with the radius scaled by a factor (but at least
+     * MIN_RADIUS and at most MAX_RADIUS).
+     *
+     * @param  factor  The scale of the copy the filter is meant for.
+     * @return  A filter for the scaled copy.
+     */
+    public Filter scaledFor(double factor)
+    {
+        int scaled = (int) Math.round(radius * factor);
+        scaled = Math.max(MIN_RADIUS, Math.min(MAX_RADIUS, scaled));
+        return scaled == radius ? this : new SmoothFilter(getName(), scaled);
     }
 
     /**
-     * @param pixels The list of pixels.
-     * @return The average of all the red values in the given list of pixels.
+     * Smooth the rows of a band.
+     *
+     * @param  band  The band to be computed.
      */
-    private int avgRed(List<Color> pixels)
+    protected void filterRows(ImageBand band)
     {
-        int total = 0;
-        for(Color color : pixels) {
-            total += color.getRed();
+        int width = band.getWidth();
+        int height = band.getHeight();
+        int firstRow = Math.max(band.getFromY() - radius, 0);
+        int lastRow = Math.min(band.getToY() + radius, height);
+
+        // horizontal pass: per row, the sums over the clipped window of each pixel
+        int rows = lastRow - firstRow;
+        int[] redSums = new int[rows * width];
+        int[] greenSums = new int[rows * width];
+        int[] blueSums = new int[rows * width];
+        for(int y = firstRow; y < lastRow; y++) {
+            sumRow(band.getSource(), band.getSourceIndex(0, y), width,
+                   redSums, greenSums, blueSums, (y - firstRow) * width);
+        }
+
+        // vertical pass: running sums of the row sums down every column
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        int top = Math.max(band.getFromY() - radius, 0);
+        int bottom = Math.min(band.getFromY() + radius, height - 1);
+        for(int y = top; y <= bottom; y++) {
+            addRow(redSums, greenSums, blueSums, (y - firstRow) * width, red, green, blue, 1);
+        }
+
+        int[] target = band.getTarget();
+        for(int y = band.getFromY(); y < band.getToY(); y++) {
+            int t = band.getTargetIndex(0, y);
+            int countY = bottom - top + 1;
+            for(int x = 0; x < width; x++) {
+                int countX = Math.min(x + radius, width - 1) - Math.max(x - radius, 0) + 1;
+                int count = countX * countY;
+                target[t + x] = ((red[x] / count) << 16) | ((green[x] / count) << 8) | (blue[x] / count);
+            }
+
+            // slide the window down by one row
+            if(y + 1 < band.getToY()) {
+                if(y - radius >= 0) {
+                    addRow(redSums, greenSums, blueSums, (top - firstRow) * width, red, green, blue, -1);
+                    top++;
+                }
+                if(y + radius + 1 < height) {
+                    bottom++;
+                    addRow(redSums, greenSums, blueSums, (bottom - firstRow) * width, red, green, blue, 1);
+                }
+            }
         }
-        return total / pixels.size();
     }
 
     /**
-     * @param pixels The list of pixels.
-     * @return The average of all the green values in the given list of pixels.
+     * Compute, for every pixel of a row, the component sums of the pixels
+     * within the radius to its left and right.
+     * @param source The original pixels.
+     * @param offset The index of the row in source.
+     * @param width The width of the image.
+     * @param red The array receiving the red sums.
+     * @param green The array receiving the green sums.
+     * @param blue The array receiving the blue sums.
+     * @param start The index at which to store the sums of the row.
      */
-    private int avgGreen(List<Color> pixels)
+    private void sumRow(int[] source, int offset, int width,
+                        int[] red, int[] green, int[] blue, int start)
     {
-        int total = 0;
-        for(Color color : pixels) {
-            total += color.getGreen();
+        int r = 0, g = 0, b = 0;
+        for(int x = 0; x < Math.min(radius, width); x++) {
+            int pixel = source[offset + x];
+            r += (pixel >> 16) & 0xff;
+            g += (pixel >> 8) & 0xff;
+            b += pixel & 0xff;
+        }
+        for(int x = 0; x < width; x++) {
+            if(x + radius < width) {
+                int pixel = source[offset + x + radius];
+                r += (pixel >> 16) & 0xff;
+                g += (pixel >> 8) & 0xff;
+                b += pixel & 0xff;
+            }
+            if(x - radius - 1 >= 0) {
+                int pixel = source[offset + x - radius - 1];
+                r -= (pixel >> 16) & 0xff;
+                g -= (pixel >> 8) & 0xff;
+                b -= pixel & 0xff;
+            }
+            red[start + x] = r;
+            green[start + x] = g;
+            blue[start + x] = b;
         }
-        return total / pixels.size();
     }
 
     /**
-     * @param pixels The list of pixels.
-     * @return The average of all the blue values in the given list of pixels.
+     * Add (or subtract) one row of horizontal sums to the column totals.
+     * @param redSums The red row sums.
+     * @param greenSums The green row sums.
+     * @param blueSums The blue row sums.
+     * @param start The index of the row in the sum arrays.
+     * @param red The red column totals.
+     * @param green The green column totals.
+     * @param blue The blue column totals.
+     * @param sign 1 to add the row, -1 to subtract it.
      */
-    private int avgBlue(List<Color> pixels)
+    private void addRow(int[] redSums, int[] greenSums, int[] blueSums, int start,
+                        int[] red, int[] green, int[] blue, int sign)
     {
-        int total = 0;
-        for(Color color : pixels) {
-            total += color.getBlue();
+        for(int x = 0; x < red.length; x++) {
+            red[x] += sign * redSums[start + x];
+            green[x] += sign * greenSums[start + x];
+            blue[x] += sign * blueSums[start + x];
         }
-        return total / pixels.size();
     }
 }
@@ -1,12 +1,10 @@
-import java.awt.Color;
-
 /**
  * An image filter to create a solarization effect.
  * 
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class SolarizeFilter extends Filter
+public class SolarizeFilter extends PointFilter
 {
     /**
      * Constructor for objects of class Solarize.
@@ -18,32 +16,12 @@ public class SolarizeFilter extends Filter
     }
 
     /**
-     * Apply this filter to an image.
+     * Invert each dark color component.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  The lookup table of this filter.
      */
-    public void apply(OFImage image)
+    protected LookupTable createTable()
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                Color pix = image.getPixel(x, y);
-                int red = pix.getRed();
-                if(red <= 127) {
-                    red = 255 - red;
-                }
-                int green = pix.getGreen();
-                if(green <= 127) {
-                    green = 255 - green;
-                }
-                int blue = pix.getBlue();
-                if(blue <= 127) {
-                    blue = 255 - blue;
-                }
-                image.setPixel(x, y, new Color(red, green, blue));
-            }
-        }
+        return LookupTable.forChannels(value -> value <= 127 ? 255 - value : value);
     }
-
 }
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A SpillFile is a temporary file that data can be moved to when it should
+ * no longer take up memory. Data is appended and can be read back any
+ * number of times; reading goes through a memory mapping of the file, so
+ * that data that was read recently comes straight from the page cache.
+ * 
+ * Data that is no longer needed is not removed from the file; instead the
+ * live data can be copied to a new file and the old one deleted.
+ * 
+ * The file is deleted when it is no longer used, or else when the
+ * application exits.
+ * 
+ * @version 1.1
+ */
+public class SpillFile
+{
+    // the largest part of the file that is mapped at once
+    private static final long MAX_MAPPING = 256L << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private long size;
+    private MappedByteBuffer mapping;
+    private long mappingStart;
+
+    /**
+     * Create a new, empty spill file in the temporary directory.
+     * @throws IOException if the file cannot be created.
+     */
+    public SpillFile() throws IOException
+    {
+        file = File.createTempFile("imageviewer-", ".spill");
+        file.deleteOnExit();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        size = 0;
+    }
+
+    /**
+     * Append data to the end of the file.
+     * @param data The bytes to write.
+     * @return The position in the file at which the data was written.
+     * @throws IOException if the data cannot be written.
+     */
+    public synchronized long write(byte[] data) throws IOException
+    {
+        long position = size;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        size += data.length;
+        return position;
+    }
+
+    /**
+     * Read data that was written before.
+     * @param position The position returned when the data was written.
+     * @param length The number of bytes to read.
+     * @return The bytes.
+     * @throws IOException if the data cannot be read.
+     */
+    public synchronized byte[] read(long position, int length) throws IOException
+    {
+        if(mapping == null || position < mappingStart
+           || position + length > mappingStart + mapping.capacity()) {
+            long mappingLength = Math.max(Math.min(size - position, MAX_MAPPING), length);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, mappingLength);
+            mappingStart = position;
+        }
+        byte[] data = new byte[length];
+        mapping.get((int) (position - mappingStart), data);
+        return data;
+    }
+
+    /**
+     * Throw away all data in the file.
+     * @throws IOException if the file cannot be truncated.
+     */
+    public synchronized void clear() throws IOException
+    {
+        mapping = null;
+        channel.truncate(0);
+        size = 0;
+    }
+
+    /**
+     * Delete the file. It must not be used afterwards.
+     */
+    public synchronized void delete()
+    {
+        mapping = null;
+        try {
+            channel.close();
+        }
+        catch(IOException exc) {
+            // nothing left to do with it: the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * @return The number of bytes in the file.
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+}
@@ -6,7 +6,7 @@ import java.awt.Color;
  * @author Michael Kölling and David J. Barnes.
  * @version 1.0
  */
-public class ThresholdFilter extends Filter
+public class ThresholdFilter extends PointFilter
 {
 	/**
 	 * Constructor for objects of class ThresholdFilter.
@@ -18,28 +18,23 @@ public class ThresholdFilter extends Filter
 	}
 
     /**
-     * Apply this filter to an image.
+     * Replace each color by black, gray or white, depending on its brightness.
      * 
-     * @param  image  The image to be changed by this filter.
+     * @return  The lookup table of this filter.
      */
-    public void apply(OFImage image)
+    protected LookupTable createTable()
     {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        for(int y = 0; y < height; y++) {
-            for(int x = 0; x < width; x++) {
-                Color pixel = image.getPixel(x, y);
-                int brightness = (pixel.getRed() + pixel.getBlue() + pixel.getGreen()) / 3;
-                if(brightness <= 85) {
-                    image.setPixel(x, y, Color.BLACK);
-                }
-                else if(brightness <= 170) {
-                    image.setPixel(x, y, Color.GRAY);
-                }
-                else {
-                    image.setPixel(x, y, Color.WHITE);
-                }
+        return LookupTable.forBrightness(sum -> {
+            int brightness = sum / 3;
+            if(brightness <= 85) {
+                return Color.BLACK.getRGB();
             }
-        }
+            else if(brightness <= 170) {
+                return Color.GRAY.getRGB();
+            }
+            else {
+                return Color.WHITE.getRGB();
+            }
+        });
     }
 }
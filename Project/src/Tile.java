@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A Tile holds the pixels of one rectangular piece of an image, as packed
+ * 0xRRGGBB ints, row by row. The content of a tile never changes, so one
+ * tile can be shared by any number of TiledImages.
+ * 
+ * To save memory, a tile can be compressed, or moved to a spill file on
+ * disk. Its pixels are still available in both cases; they are just
+ * unpacked again each time they are asked for.
+ * 
+ * @version 1.2
+ */
+public class Tile
+{
+    private final int length;
+    private int[] pixels;            // the pixels, if the tile is neither compressed nor spilled
+    private byte[] compressed;       // the deflated pixels, if the tile is compressed
+    private SpillFile spillFile;     // the file holding the deflated pixels, if the tile is spilled
+    private long spillPosition;
+    private int spillLength;
+
+    /**
+     * Create a tile holding the given pixels. The array must not be changed
+     * afterwards.
+     * @param pixels The pixels of the tile.
+     */
+    public Tile(int[] pixels)
+    {
+        this.length = pixels.length;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Return the pixels of this tile. If the tile is compressed or spilled,
+     * a new array is unpacked each time.
+     * @return The pixels of this tile, row by row; the array must not be changed.
+     */
+    public synchronized int[] getPixels()
+    {
+        if(pixels != null) {
+            return pixels;
+        }
+        if(compressed != null) {
+            return inflate(compressed);
+        }
+        try {
+            return inflate(spillFile.read(spillPosition, spillLength));
+        }
+        catch(IOException exc) {
+            throw new UncheckedIOException("could not read spilled tile", exc);
+        }
+    }
+
+    /**
+     * Return the number of bytes of pixel data this tile holds when it is
+     * unpacked.
+     * @return The size of this tile's pixels in bytes.
+     */
+    public long getBytes()
+    {
+        return 4L * length;
+    }
+
+    /**
+     * Return the number of bytes this tile takes up in memory right now.
+     * @return The size of the tile's pixels, its compressed pixels, or 0 if
+     *         it is spilled.
+     */
+    public synchronized long getMemoryBytes()
+    {
+        if(pixels != null) {
+            return getBytes();
+        }
+        return compressed != null ? compressed.length : 0;
+    }
+
+    /**
+     * @return true if this tile is kept compressed in memory.
+     */
+    public synchronized boolean isCompressed()
+    {
+        return compressed != null;
+    }
+
+    /**
+     * @return true if this tile has been moved to a spill file.
+     */
+    public synchronized boolean isSpilled()
+    {
+        return spillFile != null;
+    }
+
+    /**
+     * Compress the pixels of this tile, if that makes it smaller.
+     * @return true if the tile was compressed by this call.
+     */
+    public synchronized boolean compress()
+    {
+        if(pixels == null) {
+            return false;
+        }
+        byte[] deflated = deflate(pixels);
+        if(deflated.length >= getBytes()) {
+            return false;
+        }
+        compressed = deflated;
+        pixels = null;
+        return true;
+    }
+
+    /**
+     * Move this tile's (compressed) pixels to a spill file.
+     * @param file The file to move them to.
+     * @return true if the tile was spilled by this call.
+     * @throws IOException if the file cannot be written; the tile then
+     *         stays as it was.
+     */
+    public synchronized boolean spill(SpillFile file) throws IOException
+    {
+        if(spillFile != null) {
+            return false;
+        }
+        byte[] deflated = compressed != null ? compressed : deflate(pixels);
+        spillPosition = file.write(deflated);
+        spillLength = deflated.length;
+        spillFile = file;
+        pixels = null;
+        compressed = null;
+        return true;
+    }
+
+    /**
+     * Return the number of bytes this tile takes up in a spill file.
+     * @param file The spill file.
+     * @return The size of the tile's deflated pixels, or 0 if it is not
+     *         spilled to that file.
+     */
+    public synchronized long getSpilledBytes(SpillFile file)
+    {
+        return spillFile == file ? spillLength : 0;
+    }
+
+    /**
+     * Move this tile's spilled pixels from the file they are in to another
+     * one, such as a compacted copy of that file.
+     * @param file The file to move them to.
+     * @return true if the tile was moved by this call.
+     * @throws IOException if a file cannot be read or written; the tile
+     *         then stays as it was.
+     */
+    public synchronized boolean moveSpill(SpillFile file) throws IOException
+    {
+        if(spillFile == null || spillFile == file) {
+            return false;
+        }
+        spillPosition = file.write(spillFile.read(spillPosition, spillLength));
+        spillFile = file;
+        return true;
+    }
+
+    /**
+     * Deflate pixels into a byte array. Each pixel is stored as its three
+     * color bytes.
+     */
+    private static byte[] deflate(int[] pixels)
+    {
+        byte[] bytes = new byte[3 * pixels.length];
+        for(int i = 0, b = 0; i < pixels.length; i++, b += 3) {
+            int pixel = pixels[i];
+            bytes[b] = (byte) (pixel >> 16);
+            bytes[b + 1] = (byte) (pixel >> 8);
+            bytes[b + 2] = (byte) pixel;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] output = new byte[bytes.length + 64];
+            int size = 0;
+            while(!deflater.finished()) {
+                if(size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            return Arrays.copyOf(output, size);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflate bytes written by deflate back into pixels.
+     */
+    private int[] inflate(byte[] deflated)
+    {
+        byte[] bytes = new byte[3 * length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int size = 0;
+            while(size < bytes.length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, size, bytes.length - size);
+                if(count == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("tile data ends early");
+                }
+                size += count;
+            }
+        }
+        catch(DataFormatException exc) {
+            throw new IllegalStateException("corrupt tile data", exc);
+        }
+        finally {
+            inflater.end();
+        }
+        int[] result = new int[length];
+        for(int i = 0, b = 0; i < length; i++, b += 3) {
+            result[i] = ((bytes[b] & 0xff) << 16) | ((bytes[b + 1] & 0xff) << 8) | (bytes[b + 2] & 0xff);
+        }
+        return result;
+    }
+}
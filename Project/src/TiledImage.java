@@ -0,0 +1,189 @@
+import java.util.Arrays;
+
+/**
+ * A TiledImage is an unchangeable copy of an OFImage, cut into square
+ * tiles. When a TiledImage is made from an image that is similar to an
+ * earlier one, all tiles whose pixels did not change are shared with the
+ * earlier copy instead of being copied again. A sequence of versions of an
+ * image therefore costs memory in proportion to what changed between them.
+ * 
+ * @version 1.1
+ */
+public class TiledImage
+{
+    /** The width and height of a tile (tiles at the right and bottom edge may be smaller). */
+    public static final int TILE_SIZE = 128;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final Tile[] tiles;
+
+    /**
+     * Make a tiled copy of an image.
+     * @param image The image to copy.
+     * @param previous An earlier copy to share unchanged tiles with, or null.
+     * @return The tiled copy.
+     */
+    public static TiledImage of(OFImage image, TiledImage previous)
+    {
+        TiledImage copy = new TiledImage(image.getWidth(), image.getHeight());
+        boolean sameSize = previous != null && previous.width == copy.width
+                           && previous.height == copy.height;
+        int[] pixels = image.getPixels();
+        for(int row = 0; row < copy.rows; row++) {
+            for(int column = 0; column < copy.columns; column++) {
+                int index = row * copy.columns + column;
+                if(sameSize && copy.tileEquals(pixels, column, row, previous.tiles[index])) {
+                    copy.tiles[index] = previous.tiles[index];
+                }
+                else {
+                    copy.tiles[index] = new Tile(copy.copyTile(pixels, column, row));
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Create an empty tiled image.
+     */
+    private TiledImage(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new Tile[columns * rows];
+    }
+
+    /**
+     * @return The width of the image.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return The height of the image.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Return the tiles of this image, row by row.
+     * @return The tiles; the array must not be changed.
+     */
+    public Tile[] getTiles()
+    {
+        return tiles;
+    }
+
+    /**
+     * Create a new OFImage with the pixels of this tiled image.
+     * @return The new image.
+     */
+    public OFImage toImage()
+    {
+        OFImage image = OFImage.borrow(width, height); // every pixel is written below
+        for(int index = 0; index < tiles.length; index++) {
+            writeTile(image.getPixels(), index);
+        }
+        return image;
+    }
+
+    /**
+     * Change an image that holds the pixels of another tiled image so that it
+     * holds the pixels of this one. Only the tiles that the two tiled images
+     * do not share are copied, so the cost depends on how much differs
+     * between them rather than on the size of the image.
+     * @param image The image to change.
+     * @param current The tiled image whose pixels the image holds now.
+     * @return true if the image was changed, false if it could not be
+     *         because it has a different size than this tiled image.
+     */
+    public boolean restore(OFImage image, TiledImage current)
+    {
+        if(image.getWidth() != width || image.getHeight() != height
+           || current.width != width || current.height != height) {
+            return false;
+        }
+        int[] pixels = image.getPixels();
+        for(int index = 0; index < tiles.length; index++) {
+            if(tiles[index] != current.tiles[index]) {
+                writeTile(pixels, index);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the width of the tile in a given column.
+     */
+    private int tileWidth(int column)
+    {
+        return Math.min(TILE_SIZE, width - column * TILE_SIZE);
+    }
+
+    /**
+     * Return the height of the tiles in a given row.
+     */
+    private int tileHeight(int row)
+    {
+        return Math.min(TILE_SIZE, height - row * TILE_SIZE);
+    }
+
+    /**
+     * Copy the pixels of one tile out of an image's pixel array.
+     */
+    private int[] copyTile(int[] pixels, int column, int row)
+    {
+        int w = tileWidth(column);
+        int h = tileHeight(row);
+        int[] tile = new int[w * h];
+        int start = row * TILE_SIZE * width + column * TILE_SIZE;
+        for(int y = 0; y < h; y++) {
+            System.arraycopy(pixels, start + y * width, tile, y * w, w);
+        }
+        return tile;
+    }
+
+    /**
+     * Tell whether a tile holds the same pixels as the matching part of an
+     * image's pixel array.
+     */
+    private boolean tileEquals(int[] pixels, int column, int row, Tile tile)
+    {
+        int w = tileWidth(column);
+        int h = tileHeight(row);
+        int[] tilePixels = tile.getPixels();
+        int start = row * TILE_SIZE * width + column * TILE_SIZE;
+        for(int y = 0; y < h; y++) {
+            int from = start + y * width;
+            if(!Arrays.equals(pixels, from, from + w, tilePixels, y * w, y * w + w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the pixels of one tile into an image's pixel array.
+     */
+    private void writeTile(int[] pixels, int index)
+    {
+        int column = index % columns;
+        int row = index / columns;
+        int w = tileWidth(column);
+        int h = tileHeight(row);
+        int[] tilePixels = tiles[index].getPixels();
+        int start = row * TILE_SIZE * width + column * TILE_SIZE;
+        for(int y = 0; y < h; y++) {
+            System.arraycopy(tilePixels, y * w, pixels, start + y * width, w);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A TransformEngine turns and flips images (see Orientation), using all
+ * processor cores for large images.
+ * 
+ * Every orientation maps a source pixel (x, y) to the target index
+ * offset + x * stepX + y * stepY, so a single loop handles all of them.
+ * Orientations that keep rows as rows copy them (forwards or backwards) in
+ * one pass. Orientations that turn rows into columns walk the image in
+ * square blocks, so that the columns written for a block stay in the cache
+ * until they are complete instead of being evicted for every pixel.
+ * 
+ * The result borrows its pixels from the shared PixelPool.
+ * 
+ * @version 1.1
+ */
+public class TransformEngine
+{
+    // the width and height of the blocks an image is transposed in
+    private static final int BLOCK_SIZE = 64;
+    // bands smaller than this (in pixels) are not split any further
+    private static final int MIN_BAND_PIXELS = 1 << 18;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a TransformEngine that uses one thread per processor core.
+     */
+    public TransformEngine()
+    {
+        this(new ForkJoinPool());
+    }
+
+    /**
+     * Create a TransformEngine that runs its work on a given pool.
+     * @param pool The pool to run the work on.
+     */
+    public TransformEngine(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Create a turned or flipped copy of an image.
+     * @param orientation How to turn or flip the image.
+     * @param image The image to copy; it is not changed.
+     * @return The new image.
+     */
+    public OFImage apply(Orientation orientation, OFImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        OFImage result = orientation.isTransposing() ? OFImage.borrow(height, width)
+                                                     : OFImage.borrow(width, height);
+        int targetWidth = result.getWidth();
+        int targetHeight = result.getHeight();
+
+        // where the pixel (x, y) goes: x and y first become the target's
+        // column and row (or row and column when transposing), then flipping
+        // makes either of them count backwards from the other edge
+        int columnStep = orientation.isFlippingX() ? -1 : 1;
+        int rowStep = orientation.isFlippingY() ? -targetWidth : targetWidth;
+        int offset = (orientation.isFlippingX() ? targetWidth - 1 : 0)
+                     + (orientation.isFlippingY() ? (targetHeight - 1) * targetWidth : 0);
+        int stepX = orientation.isTransposing() ? rowStep : columnStep;
+        int stepY = orientation.isTransposing() ? columnStep : rowStep;
+
+        int minRows = Math.max(BLOCK_SIZE, MIN_BAND_PIXELS / Math.max(width, 1));
+        pool.invoke(new BandTask(image.getPixels(), result.getPixels(), width,
+                                 offset, stepX, stepY, minRows, 0, height));
+        return result;
+    }
+
+    /**
+     * Copy the source rows fromY to toY to their places in the target.
+     */
+    private static void copyRows(int[] source, int[] target, int width,
+                                 int offset, int stepX, int stepY, int fromY, int toY)
+    {
+        if(stepX == 1) {
+            for(int y = fromY; y < toY; y++) {
+                System.arraycopy(source, y * width, target, offset + y * stepY, width);
+            }
+        }
+        else if(stepX == -1) {
+            for(int y = fromY; y < toY; y++) {
+                int s = y * width;
+                int t = offset + y * stepY;
+                for(int x = 0; x < width; x++) {
+                    target[t - x] = source[s + x];
+                }
+            }
+        }
+        else {
+            for(int blockY = fromY; blockY < toY; blockY += BLOCK_SIZE) {
+                int endY = Math.min(blockY + BLOCK_SIZE, toY);
+                for(int blockX = 0; blockX < width; blockX += BLOCK_SIZE) {
+                    int endX = Math.min(blockX + BLOCK_SIZE, width);
+                    for(int y = blockY; y < endY; y++) {
+                        int s = y * width;
+                        int t = offset + y * stepY;
+                        for(int x = blockX; x < endX; x++) {
+                            target[t + x * stepX] = source[s + x];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A task that copies a band of source rows, splitting it in halves as
+     * long as it is large enough to be worth running in parallel.
+     */
+    private static class BandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] source;
+        private final int[] target;
+        private final int width;
+        private final int offset;
+        private final int stepX;
+        private final int stepY;
+        private final int minRows;
+        private final int fromY;
+        private final int toY;
+
+        BandTask(int[] source, int[] target, int width, int offset, int stepX, int stepY,
+                 int minRows, int fromY, int toY)
+        {
+            this.source = source;
+            this.target = target;
+            this.width = width;
+            this.offset = offset;
+            this.stepX = stepX;
+            this.stepY = stepY;
+            this.minRows = minRows;
+            this.fromY = fromY;
+            this.toY = toY;
+        }
+
+        protected void compute()
+        {
+            int rows = toY - fromY;
+            if(rows / 2 < minRows) {
+                copyRows(source, target, width, offset, stepX, stepY, fromY, toY);
+            }
+            else {
+                // split at a block boundary, so that blocks stay whole
+                int middle = fromY + (rows / 2 / BLOCK_SIZE) * BLOCK_SIZE;
+                invokeAll(new BandTask(source, target, width, offset, stepX, stepY, minRows, fromY, middle),
+                          new BandTask(source, target, width, offset, stepX, stepY, minRows, middle, toY));
+            }
+        }
+    }
+}